@@ -26,14 +26,17 @@ import malt.align.BandedAligner;
 import malt.data.*;
 import malt.io.*;
 import malt.util.FixedSizePriorityQueue;
+import malt.util.IntIntMap;
 import malt.util.Utilities;
 import megan.genes.GeneItemAccessor;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * the main alignment engine. This runs in its own thread. It grabs the next read from the read queue and writes
@@ -41,10 +44,15 @@ import java.util.Map;
  * Daniel Huson, 8.2014
  */
 public class AlignmentEngine {
+    private static final byte[] TAB_LENGTH_EQUALS = "\tLength=".getBytes();
+    private static final byte[] TAB_READ_GROUP_NEW_LINE = "\tRG:Z:1\n".getBytes();
+    private static final String MAGNITUDE_TAG = "magnitude|";
+
     private final int threadNumber; // used for output queuing
 
     // general data structures:
     private final MaltOptions maltOptions;
+    private final AlignerOptions alignerOptions;
     private final ReferencesDBAccess referencesDB;
     private final ReferencesHashTableAccess[] tables;
     private final SeedShape[] seedShapes;
@@ -54,10 +62,12 @@ public class AlignmentEngine {
     // io:
     private final FastAReader fastAReader;
     private final MaltOptions.MatchOutputFormat matchOutputFormat;
+    private final boolean samReadGroupWrittenDirectly;
     private final FileWriterRanked matchesWriter;
     private final FileWriterRanked alignedReadsWriter;
     private final FileWriterRanked unalignedReadsWriter;
     private final RMA6Writer rmaWriter;
+    private final int persistentCacheOutputs; // outputs that the texts of persistently cached matches must be computed for
 
     private final GeneItemAccessor geneTableAccess;
 
@@ -68,6 +78,7 @@ public class AlignmentEngine {
     private final double percentIdentity;
 
     // xdrop heuristic:
+    private final boolean useUngappedXDropFilter;
     private final int xDrop;
     private final int minUngappedRawScore;
 
@@ -80,19 +91,27 @@ public class AlignmentEngine {
     private long countSeedMatches;
     private long countHashSeedMismatches;
     private long countAlignments;
+    private long countUngappedRejectedSeeds;
 
     // used in inner loop:
-    private final FixedSizePriorityQueue<ReadMatch> matchesQueue;
+    private final ExtensionScratch scratch;
     private final ReadMatch[] recycledMatchesArray;
-    private final BandedAligner aligner;
-    private final Map<Integer, SeedMatchArray> refIndex2ASeedMatches;
-
-    private final ReadMatch[] readMatchesForRefIndex;
+    private final IntIntMap refIndex2SeedArrayIndex; // maps each ref-index to the index of its seed array in seedArrays
 
     private SeedMatchArray[] seedArrays;   // used in innerloop to keep track of seedmatches per reference sequence
     private int seedArraysLength = 0;
 
+    // used for block lookup of seeds:
+    private int[] lookupHashValues = new int[0];
+    private long[] lookupLocations = new long[0];
+    private Row[] lookupRows = new Row[0];
+
     static private QuerySequence2MatchesCache querySequence2MatchesCache = null;
+    static private PersistentMatchesCache persistentMatchesCache = null;
+
+    // scratch used by a pool thread when it extends seeds of a heavy read, possibly one that is being processed by another engine:
+    static private final ThreadLocal<ExtensionScratch> threadSpecificScratch = new ThreadLocal<>();
+    private static final int SPLIT_GRAIN_SEEDS = 500; // split the seeds of a heavy read into tasks of about this size
 
     /**
      * construct an instance of the alignment engine. Each instance is run in a separate thread
@@ -100,47 +119,51 @@ public class AlignmentEngine {
     AlignmentEngine(final int threadNumber, final MaltOptions maltOptions, AlignerOptions alignerOptions, final ReferencesDBAccess referencesDB,
                     final ReferencesHashTableAccess[] tables, final FastAReader fastAReader,
                     final FileWriterRanked matchesWriter, final RMA6Writer rmaWriter,
-                    final FileWriterRanked alignedReadsWriter, final FileWriterRanked unalignedReadsWriter, final GeneItemAccessor geneTableAccess) throws IOException {
+                    final FileWriterRanked alignedReadsWriter, final FileWriterRanked unalignedReadsWriter, final GeneItemAccessor geneTableAccess,
+                    final boolean singlePassSAM) throws IOException {
         this.threadNumber = threadNumber;
         this.maltOptions = maltOptions;
+        this.alignerOptions = alignerOptions;
         this.referencesDB = referencesDB;
         this.tables = tables;
         this.fastAReader = fastAReader;
         this.matchOutputFormat = maltOptions.getMatchOutputFormat();
+        this.samReadGroupWrittenDirectly = maltOptions.isSamReadGroupWrittenDirectly(singlePassSAM);
         this.matchesWriter = matchesWriter;
         this.rmaWriter = rmaWriter;
+        this.persistentCacheOutputs = (matchesWriter != null ? PersistentMatchesCache.OUTPUT_MATCHES : 0) | (rmaWriter != null ? PersistentMatchesCache.OUTPUT_RMA : 0);
         this.alignedReadsWriter = alignedReadsWriter;
         this.unalignedReadsWriter = unalignedReadsWriter;
         this.geneTableAccess = geneTableAccess;
 
         this.shift = maltOptions.getShift();
 
-        this.alignedReferenceIds = (maltOptions.isSparseSAM() ? null : new BitSet());
+        this.alignedReferenceIds = (maltOptions.isSparseSAM() || maltOptions.isSamAllSQUpFront() ? null : new BitSet());
 
         seedShapes = new SeedShape[tables.length];
         for (int t = 0; t < tables.length; t++) {
             seedShapes[t] = tables[t].getSeedShape();
         }
 
-        // aligner and parameters
-        aligner = new BandedAligner(alignerOptions, maltOptions.getMode());
+        // aligner and other data structures used in inner loop:
+        scratch = new ExtensionScratch(maltOptions, alignerOptions);
 
-        minRawScore = aligner.getRawScoreForBitScore(maltOptions.getMinBitScore());
+        minRawScore = scratch.aligner.getRawScoreForBitScore(maltOptions.getMinBitScore());
         minBitScore = maltOptions.getMinBitScore();
         maxExpected = maltOptions.getMaxExpected();
         percentIdentity = maltOptions.getMinProportionIdentity();
 
         // ungapped alignment parameters:
+        useUngappedXDropFilter = alignerOptions.isUseUngappedXDropFilter();
         xDrop = alignerOptions.getUngappedXDrop(maltOptions.getMode());
-        minUngappedRawScore = alignerOptions.getUngappedMinRawScore(maltOptions.getMode());
+        // the filter is lossy: a gapped or semi-global alignment can reach minRawScore although the ungapped extension of its seed
+        // stays below minUngappedRawScore, e.g. when an indel lies close to the seed. Such hits are missed. The threshold is only capped,
+        // so that it never exceeds the one used for reporting:
+        minUngappedRawScore = (int) Math.min(alignerOptions.getUngappedMinRawScore(maltOptions.getMode()), minRawScore);
 
         // data structures used in inner loop:
-        matchesQueue = new FixedSizePriorityQueue<>(maltOptions.getMaxAlignmentsPerQuery(), ReadMatch.createComparator());
         recycledMatchesArray = new ReadMatch[maltOptions.getMaxAlignmentsPerQuery()];
-        refIndex2ASeedMatches = new HashMap<>(10000, 0.9f);
-        readMatchesForRefIndex = new ReadMatch[maltOptions.getMaxAlignmentsPerReference()];
-        for (int i = 0; i < readMatchesForRefIndex.length; i++)
-            readMatchesForRefIndex[i] = new ReadMatch();
+        refIndex2SeedArrayIndex = new IntIntMap(10000);
 
         seedArrays = resizeAndConstructEntries(new SeedMatchArray[0], 1000, maltOptions.getMaxSeedsPerReference());
     }
@@ -148,71 +171,114 @@ public class AlignmentEngine {
     /**
      * The main outer loop. Grabs the next input read and determines all possible seed matches. Then calls the inner loop
      */
-    void runOuterLoop() {
-        try {
-            final int maxFramesPerQuery = Utilities.getMaxFramesPerQuery(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse());
-
-            // setup thread specific data-structure:
-            final DataForInnerLoop dataForInnerLoop = new DataForInnerLoop(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse(), maxFramesPerQuery, tables.length);
-
-            // setup buffers for seeds.
-            final byte[][][] seedBytes = new byte[maxFramesPerQuery][tables.length][];
-            for (int s = 0; s < maxFramesPerQuery; s++) {
-                for (int t = 0; t < tables.length; t++) {
-                    seedBytes[s][t] = seedShapes[t].createBuffer(); // shape-specific buffer
-                }
+    void runOuterLoop() throws IOException {
+        final int maxFramesPerQuery = Utilities.getMaxFramesPerQuery(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse());
+
+        // setup thread specific data-structure:
+        final DataForInnerLoop dataForInnerLoop = new DataForInnerLoop(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse(), maxFramesPerQuery, tables.length);
+
+        // setup buffers for seeds.
+        final byte[][][] seedBytes = new byte[maxFramesPerQuery][tables.length][];
+        for (int s = 0; s < maxFramesPerQuery; s++) {
+            for (int t = 0; t < tables.length; t++) {
+                seedBytes[s][t] = seedShapes[t].createBuffer(); // shape-specific buffer
             }
+        }
 
+        if (fastAReader.isUsingBatches()) {
+            // claim whole batches of queries from the reader thread
+            FastARecordBatch batch;
+            while ((batch = fastAReader.takeBatch()) != null) {
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        processQuery(batch.get(i), dataForInnerLoop, seedBytes);
+                    }
+                } finally {
+                    fastAReader.recycleBatch(batch);
+                }
+            }
+        } else {
             // iterate over all available queries, this method is thread-safe
             final FastARecord query = FastAReader.createFastARecord(1024, isWantQualityValues());
             while (fastAReader.readAsFastA(query)) {
-                if (querySequence2MatchesCache != null && querySequence2MatchesCache.contains(query.getSequence(), query.getSequenceLength())) {
-                    runInnerLoop(query, 0, null); // query is cached, no need to compute frames etc
-                } else {
-                    // determine all frames to use:
-                    dataForInnerLoop.computeFrames(query.getSequence(), query.getQualityValues(), query.getSequenceLength());
-
-                    // find seed matches for all frames and using all seed tables:
-                    int totalSize = 0;
-                    for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {  // for each frame of query
-                        for (int t = 0; t < tables.length; t++) {  // consider each seed table
-                            final ReferencesHashTableAccess table = tables[t];
-                            final SeedShape seedShape = table.getSeedShape();
-                            int top = dataForInnerLoop.frameSequenceLength[s] - seedShape.getLength() + 1;
-                            for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {  // consider all offsets
-                                if (qOffset < top) {
-                                    final byte[] seed = seedShape.getSeed(dataForInnerLoop.frameSequence[s], qOffset, seedBytes[s][t]);
-                                    totalSize += table.lookup(seed, dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset]);
-                                } else
-                                    dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset].setEmpty();
-                            }
-                        }
+                processQuery(query, dataForInnerLoop, seedBytes);
+            }
+        }
+    }
+
+    /**
+     * determines all seed matches for a single query and then runs the inner loop
+     */
+    private void processQuery(final FastARecord query, final DataForInnerLoop dataForInnerLoop, final byte[][][] seedBytes) throws IOException {
+        ReadMatch[] cachedMatches = (querySequence2MatchesCache != null ? querySequence2MatchesCache.get(query.getSequence(), query.getSequenceLength()) : null);
+        if (cachedMatches == null && persistentMatchesCache != null) {
+            cachedMatches = persistentMatchesCache.get(query.getSequence(), query.getSequenceLength(), persistentCacheOutputs);
+            if (cachedMatches != null && querySequence2MatchesCache != null && isUsable(cachedMatches))
+                querySequence2MatchesCache.put(query.getSequence(), query.getSequenceLength(), cachedMatches, cachedMatches.length);
+        }
+        if (cachedMatches != null && isUsable(cachedMatches)) {
+            runInnerLoop(query, 0, null, cachedMatches); // query is cached, no need to compute frames etc
+        } else {
+            // determine all frames to use:
+            dataForInnerLoop.computeFrames(query.getSequence(), query.getQualityValues(), query.getSequenceLength());
+
+            // find seed matches for all frames and using all seed tables.
+            // For each table, we first hash all seeds of all frames and then look them up as a block:
+            int totalSize = 0;
+            for (int t = 0; t < tables.length; t++) {  // consider each seed table
+                final ReferencesHashTableAccess table = tables[t];
+                final SeedShape seedShape = table.getSeedShape();
+                int count = 0;
+                for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {  // for each frame of query
+                    int top = dataForInnerLoop.frameSequenceLength[s] - seedShape.getLength() + 1;
+                    for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {  // consider all offsets
+                        if (qOffset < top) {
+                            if (count == lookupRows.length)
+                                growLookupBuffers(2 * count);
+                            final byte[] seed = seedShape.getSeed(dataForInnerLoop.frameSequence[s], qOffset, seedBytes[s][t]);
+                            lookupHashValues[count] = table.getHash(seed);
+                            lookupRows[count++] = dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset];
+                        } else
+                            dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset].setEmpty();
                     }
-                    // run the inner loop
-                    runInnerLoop(query, totalSize, dataForInnerLoop);
                 }
+                totalSize += table.lookup(lookupHashValues, lookupLocations, lookupRows, count);
             }
-        } catch (Exception ex) {
-            Basic.caught(ex);
-            System.exit(1);  // just die...
+            // run the inner loop
+            runInnerLoop(query, totalSize, dataForInnerLoop, null);
         }
     }
 
     /**
-     * run the inner loop. This tries to extend all found seed matches. If caching is used, first tries to find alignments in cache
+     * can cached matches be used for the output files of this run? They lack texts, if they were computed for different output files
+     *
+     * @param cachedMatches
+     * @return true, if all required texts are present
      */
-    private void runInnerLoop(final FastARecord query, final int totalSize, final DataForInnerLoop dataForInnerLoop) throws IOException {
-        countSequencesProcessed++;
+    private boolean isUsable(final ReadMatch[] cachedMatches) {
+        for (ReadMatch readMatch : cachedMatches) {
+            if ((matchesWriter != null && readMatch.getText() == null) || (rmaWriter != null && readMatch.getRMA6Text() == null))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * run the inner loop. This tries to extend all found seed matches, unless cached matches for the query are given
+     */
+    private void runInnerLoop(final FastARecord query, final int totalSize, final DataForInnerLoop dataForInnerLoop, final ReadMatch[] cachedMatches) throws IOException {
+        final int multiplicity = 1 + query.getNumberOfDuplicates(); // number of input records that have this sequence
+        countSequencesProcessed += multiplicity;
 
         // if cache active and query found, use the cached matches:
-        ReadMatch[] matchesArray = (querySequence2MatchesCache != null ? querySequence2MatchesCache.get(query.getSequence(), query.getSequenceLength()) : null);
+        ReadMatch[] matchesArray = cachedMatches;
         int numberOfMatches = (matchesArray != null ? matchesArray.length : 0);
 
         if (matchesArray != null) // found is cache, rescan counts
         {
             if (numberOfMatches > 0) {
-                countAlignments += numberOfMatches;
-                countSequencesWithAlignments++;
+                countAlignments += multiplicity * numberOfMatches;
+                countSequencesWithAlignments += multiplicity;
             }
         } else // not found in cache, need to compute...
         {
@@ -252,15 +318,18 @@ public class AlignmentEngine {
                                                 break;  // exceeded the maximum number of seeds per frame
                                             }
 
-                                            SeedMatchArray set = refIndex2ASeedMatches.get(refIndex);
-                                            if (set == null) {
+                                            final SeedMatchArray set;
+                                            final int index = refIndex2SeedArrayIndex.get(refIndex);
+                                            if (index == -1) {
                                                 if (seedArraysLength >= seedArrays.length) {
                                                     //System.err.println("seedArray: " + seedArrays.length + " -> " + (2 * seedArraysLength));
                                                     seedArrays = resizeAndConstructEntries(seedArrays, 2 * seedArraysLength, maltOptions.getMaxSeedsPerReference());
                                                 }
+                                                refIndex2SeedArrayIndex.put(refIndex, seedArraysLength);
                                                 set = seedArrays[seedArraysLength++];
-                                                refIndex2ASeedMatches.put(refIndex, set);
-                                            }
+                                                set.setRefIndex(refIndex);
+                                            } else
+                                                set = seedArrays[index];
                                             if (set.size() < maltOptions.getMaxSeedsPerReference()) {
                                                 set.setNext(qOffset, refOffset, s, seedShapes[t].getLength());
                                                 // else System.err.println("SKIPPED");
@@ -276,145 +345,33 @@ public class AlignmentEngine {
                     }
 
                     // try to align each seed
-
-                    for (Integer refIndex : refIndex2ASeedMatches.keySet()) {
-                        SeedMatch previous = null;
-                        final SeedMatchArray seedMatches = refIndex2ASeedMatches.get(refIndex);
-                        seedMatches.sort();
-                        int numberOfReadMatchesForRefIndex = 0;  // we keep a short array of best hits for the given reference index
-
-                        for (int i = 0; i < seedMatches.size(); i++) {
-                            SeedMatch seedMatch = seedMatches.get(i);
-                            if (!seedMatch.follows(previous)) {   // ignore back-to-back matches
-                                // todo: debugging
-                                if (refIndex >= referencesDB.getNumberOfSequences()) {
-                                    System.err.println("seedMatch=" + seedMatch.toString());
-                                    throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
-                                }
-                                final byte[] referenceSequence = referencesDB.getSequence(refIndex);
-                                final byte[] sequence = dataForInnerLoop.frameSequence[seedMatch.getRank()];
-                                int length = dataForInnerLoop.frameSequenceLength[seedMatch.getRank()];
-
-                                if (aligner.quickCheck(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset())) {
-
-                                    aligner.computeAlignment(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength());
-
-                                    if (aligner.getRawScore() >= minRawScore) {  // have found match with sufficient rawScore
-                                        // compute bitscore and expected score
-                                        aligner.computeBitScoreAndExpected();
-
-                                        if (aligner.getBitScore() >= minBitScore && aligner.getExpected() <= maxExpected) {
-                                            ReadMatch readMatch;
-                                            boolean foundPlaceToKeepThisMatch;
-                                            boolean incrementedNumberOfReadMatchesForRefIndex = false;
-
-                                            if (readMatchesForRefIndex.length == 1) {  // only allowing one hit per reference...
-                                                readMatch = readMatchesForRefIndex[0];
-                                                numberOfReadMatchesForRefIndex = 1;
-                                                foundPlaceToKeepThisMatch = true;
-                                                incrementedNumberOfReadMatchesForRefIndex = true;
-                                            } else {  //allow more than one hit
-                                                // ensure that this match does not overlap an existing match of same or better quality
-                                                boolean overlap = false;
-                                                for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                                                    readMatch = readMatchesForRefIndex[z];
-                                                    if (readMatch.getBitScore() >= aligner.getBitScore() && readMatch.overlap(aligner.getStartReference(), aligner.getEndReference())) {
-                                                        overlap = true;
-                                                        break;
-                                                    }
-                                                }
-                                                if (overlap)
-                                                    continue;
-
-                                                // keep this match, if array not full:
-                                                if (numberOfReadMatchesForRefIndex < readMatchesForRefIndex.length) {
-                                                    readMatch = readMatchesForRefIndex[numberOfReadMatchesForRefIndex++];
-                                                    foundPlaceToKeepThisMatch = true;
-                                                    incrementedNumberOfReadMatchesForRefIndex = true;
-                                                } else {  // otherwise replace one with lower rawScore
-                                                    foundPlaceToKeepThisMatch = false;
-                                                    readMatch = null;
-                                                    for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                                                        readMatch = readMatchesForRefIndex[z];
-                                                        if (aligner.getBitScore() > readMatch.getBitScore()) {
-                                                            foundPlaceToKeepThisMatch = true;
-                                                            break;
-                                                        }
-                                                    }
-                                                }
-                                            }
-
-                                            if (foundPlaceToKeepThisMatch) {
-                                                final byte[] referenceHeader;
-                                                if (geneTableAccess == null)
-                                                    referenceHeader = referencesDB.getHeader(refIndex);
-                                                else {
-                                                    int start = aligner.getStartReference();
-                                                    if (start == -1) {
-                                                        aligner.computeAlignmentByTraceBack();
-                                                        start = aligner.getStartReference();
-                                                    }
-                                                    int end = aligner.getEndReference();
-                                                    referenceHeader = geneTableAccess.annotateRefString(Basic.toString(referencesDB.getHeader(refIndex)), refIndex, start, end).getBytes();
-                                                    //System.err.println(Basic.toString(referenceHeader));
-                                                }
-
-                                                byte[] text = null;
-                                                byte[] rma6Text = null;
-                                                if (matchesWriter != null) {
-                                                    switch (matchOutputFormat) {
-                                                        default:
-                                                        case Text: {
-                                                            text = aligner.getAlignmentText(dataForInnerLoop, seedMatch.getRank());
-                                                            break;
-                                                        }
-                                                        case Tab: {
-                                                            text = aligner.getAlignmentTab(dataForInnerLoop, null, referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                            break;
-                                                        }
-                                                        case SAM: {
-                                                            rma6Text = text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                            break;
-                                                        }
-                                                    }
-                                                }
-                                                if (rmaWriter != null && rma6Text == null) {
-                                                    rma6Text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                }
-                                                if (percentIdentity > 0) // need to filter by percent identity. Can't do this earlier because number of matches not known until alignment has been computed
-                                                {
-                                                    if (text == null && rma6Text == null)  // haven't computed alignment, so number of matches not yet computed
-                                                        aligner.computeAlignmentByTraceBack(); // compute number of matches
-                                                    if (aligner.getIdentities() < percentIdentity * aligner.getAlignmentLength()) {  // too few identities
-                                                        if (incrementedNumberOfReadMatchesForRefIndex)
-                                                            numberOfReadMatchesForRefIndex--; // undo increment, won't be saving this match
-                                                        continue;
-                                                    }
-                                                }
-                                                readMatch.set(aligner.getBitScore(), refIndex, text, rma6Text, aligner.getStartReference(), aligner.getEndReference());
-                                            }
-                                            previous = seedMatch;
-                                        }
-                                    }
-                                }
-                            }
+                    if (maltOptions.getSplitHeavyReadSeeds() > 0 && seedArraysLength > 1 && ForkJoinTask.inForkJoinPool()
+                            && countSeedMatches(0, seedArraysLength) >= maltOptions.getSplitHeavyReadSeeds()) {
+                        // heavy read: extend the seeds of different references as separate tasks, which idle threads of the pool can steal
+                        final ExtendSeedsTask task = new ExtendSeedsTask(query, dataForInnerLoop, 0, seedArraysLength);
+                        task.invoke();
+                        countUngappedRejectedSeeds += task.rejected;
+                        for (ReadMatch readMatch : task.matches) { // merge the top matches of all tasks
+                            if (!scratch.matchesQueue.add(readMatch))
+                                scratch.recycleReadMatch(readMatch);
                         }
-                        for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                            matchesQueue.add(readMatchesForRefIndex[z].getCopy());
+                    } else {
+                        for (int r = 0; r < seedArraysLength; r++) {
+                            countUngappedRejectedSeeds += extendSeeds(seedArrays[r], query, dataForInnerLoop, scratch);
                         }
                     }
                 } finally {
                     // erase the seed sets
-                    refIndex2ASeedMatches.clear();
+                    refIndex2SeedArrayIndex.clear();
                 }
             }
 
-            if (matchesQueue.size() > 0) {
-                countAlignments += matchesQueue.size();
-                countSequencesWithAlignments++;
-                numberOfMatches = matchesQueue.size();
+            if (scratch.matchesQueue.size() > 0) {
+                countAlignments += multiplicity * scratch.matchesQueue.size();
+                countSequencesWithAlignments += multiplicity;
+                numberOfMatches = scratch.matchesQueue.size();
                 for (int i = numberOfMatches - 1; i >= 0; i--) {  // places matches into array ordered by descending score
-                    recycledMatchesArray[i] = matchesQueue.poll();
+                    recycledMatchesArray[i] = scratch.matchesQueue.poll();
                 }
                 matchesArray = recycledMatchesArray; // we reuse the matches array in the case that we are not using matches cache
             }
@@ -422,41 +379,69 @@ public class AlignmentEngine {
             if (querySequence2MatchesCache != null) {
                 querySequence2MatchesCache.put(query.getSequence(), query.getSequenceLength(), matchesArray, numberOfMatches); // ok to pass matchesArray==null when numberOfMatches==0
             }
+            if (persistentMatchesCache != null) {
+                persistentMatchesCache.put(query.getSequence(), query.getSequenceLength(), matchesArray, numberOfMatches, persistentCacheOutputs);
+            }
         }
 
         // output the alignments or skip the read (or output on skip, if negative filter...):
         if (numberOfMatches > 0) {
-            if (matchesWriter != null) {
-                switch (matchOutputFormat) {
-                    default:
-                    case Text: {
-                        byte[][] strings = new byte[3 * numberOfMatches + 1][];
-                        strings[0] = BlastTextHelper.makeQueryLine(query);
-                        for (int i = 0; i < numberOfMatches; i++) {
-                            final ReadMatch readMatch = matchesArray[i];
-                            strings[3 * i + 1] = referencesDB.getHeader(readMatch.getReferenceId());
-                            strings[3 * i + 2] = String.format("\tLength=%d\n", referencesDB.getSequenceLength(readMatch.getReferenceId())).getBytes();
-                            strings[3 * i + 3] = readMatch.getText();
+            for (int c = 0; c < multiplicity; c++) { // output for each collapsed duplicate using its own name and rank
+                final FastARecord copy = (c == 0 ? query : query.getDuplicate(c - 1));
+                if (matchesWriter != null) {
+                    switch (matchOutputFormat) {
+                        default:
+                        case Text: {
+                            final OutputItem item = matchesWriter.obtainItem(threadNumber);
+                            item.appendLine(BlastTextHelper.makeQueryLine(copy));
+                            for (int i = 0; i < numberOfMatches; i++) {
+                                final ReadMatch readMatch = matchesArray[i];
+                                item.appendLine(referencesDB.getHeader(readMatch.getReferenceId()));
+                                item.append(TAB_LENGTH_EQUALS);
+                                item.appendNumber(referencesDB.getSequenceLength(readMatch.getReferenceId()));
+                                item.append((byte) '\n');
+                                item.append((byte) '\n');
+                                item.appendLine(readMatch.getText());
+                            }
+                            matchesWriter.writeByRank(threadNumber, copy.getId(), item);
+                            break;
                         }
-                        matchesWriter.writeByRank(threadNumber, query.getId(), strings);
-                        break;
-                    }
-                    case SAM:
-                    case Tab: {
-                        byte[] queryNamePlusTab = BlastTextHelper.getQueryNamePlusTab(query);
-                        byte[][] strings = new byte[2 * numberOfMatches][];
-                        for (int i = 0; i < numberOfMatches; i++) {
-                            ReadMatch readMatch = matchesArray[i];
-                            strings[2 * i] = queryNamePlusTab;
-                            strings[2 * i + 1] = readMatch.getText();
+                        case SAM:
+                        case Tab: {
+                            final OutputItem item = matchesWriter.obtainItem(threadNumber);
+                            final byte[] queryNamePlusTab = BlastTextHelper.getQueryNamePlusTab(copy);
+                            final boolean addReadGroup = (matchOutputFormat == MaltOptions.MatchOutputFormat.SAM && samReadGroupWrittenDirectly);
+                            for (int i = 0; i < numberOfMatches; i++) {
+                                item.append(queryNamePlusTab);
+                                if (addReadGroup) {
+                                    item.append(matchesArray[i].getText());
+                                    item.append(TAB_READ_GROUP_NEW_LINE);
+                                } else
+                                    item.appendLine(matchesArray[i].getText());
+                            }
+                            matchesWriter.writeByRank(threadNumber, copy.getId(), item);
+                            break;
+                        }
+                        case BAM: {
+                            final OutputItem item = matchesWriter.obtainItem(threadNumber);
+                            final byte[] queryNamePlusTab = BlastTextHelper.getQueryNamePlusTab(copy);
+                            for (int i = 0; i < numberOfMatches; i++) {
+                                BAMHelper.appendRecord(item, matchesArray[i].getText(), queryNamePlusTab, queryNamePlusTab.length - 1);
+                            }
+                            matchesWriter.writeByRank(threadNumber, copy.getId(), item);
+                            break;
                         }
-                        matchesWriter.writeByRank(threadNumber, query.getId(), strings);
-                        break;
                     }
                 }
+                if (alignedReadsWriter != null) {
+                    alignedReadsWriter.writeByRank(threadNumber, copy.getId(), Utilities.getFirstWordEnsureLeadingGreaterSign(copy.getHeader()), copy.getSequence()); // writer copies up to terminating 0
+                }
+                if (unalignedReadsWriter != null) {
+                    unalignedReadsWriter.skipByRank(threadNumber, copy.getId());
+                }
             }
-            if (rmaWriter != null) {
-                rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, numberOfMatches);
+            if (rmaWriter != null) { // a collapsed read is written once, with the number of duplicates as its magnitude
+                rmaWriter.processMatches(getHeaderStringWithMagnitude(query), query.getSequenceString(), matchesArray, numberOfMatches);
             }
 
             if (alignedReferenceIds != null) {
@@ -466,34 +451,240 @@ public class AlignmentEngine {
                 }
             }
 
-            if (alignedReadsWriter != null) {
-                alignedReadsWriter.writeByRank(threadNumber, query.getId(), Utilities.getFirstWordEnsureLeadingGreaterSign(query.getHeader()), Utilities.copy0Terminated(query.getSequence()));
-            }
-            if (unalignedReadsWriter != null) {
-                unalignedReadsWriter.skipByRank(threadNumber, query.getId());
+            if (matchesArray == recycledMatchesArray) { // matches have been written or copied, can reuse them
+                for (int i = 0; i < numberOfMatches; i++) {
+                    scratch.recycleReadMatch(recycledMatchesArray[i]);
+                    recycledMatchesArray[i] = null;
+                }
             }
             // matchesQueue.erase();    // not necessary because queue is consumed when building array
         } else {   // no match
-            if (matchesWriter != null) {
-                switch (matchOutputFormat) {
-                    case Text: // report no-hits statement
-                        matchesWriter.writeByRank(threadNumber, query.getId(), BlastTextHelper.makeQueryLine(query), BlastTextHelper.NO_HITS);
-                        break;
-                    default:
-                        matchesWriter.skipByRank(threadNumber, query.getId());
-                        break;
+            for (int c = 0; c < multiplicity; c++) {
+                final FastARecord copy = (c == 0 ? query : query.getDuplicate(c - 1));
+                if (matchesWriter != null) {
+                    switch (matchOutputFormat) {
+                        case Text: // report no-hits statement
+                            matchesWriter.writeByRank(threadNumber, copy.getId(), BlastTextHelper.makeQueryLine(copy), BlastTextHelper.NO_HITS);
+                            break;
+                        default:
+                            matchesWriter.skipByRank(threadNumber, copy.getId());
+                            break;
+                    }
+                }
+                if (alignedReadsWriter != null) {
+                    alignedReadsWriter.skipByRank(threadNumber, copy.getId());
+                }
+                if (unalignedReadsWriter != null) {
+                    unalignedReadsWriter.writeByRank(threadNumber, copy.getId(), Utilities.getFirstWordEnsureLeadingGreaterSign(copy.getHeader()), copy.getSequence()); // writer copies up to terminating 0
                 }
             }
             if (rmaWriter != null && maltOptions.isSaveUnalignedToRMA()) {
-                rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, 0);
+                rmaWriter.processMatches(getHeaderStringWithMagnitude(query), query.getSequenceString(), matchesArray, 0);
             }
-            if (alignedReadsWriter != null) {
-                alignedReadsWriter.skipByRank(threadNumber, query.getId());
-            }
-            if (unalignedReadsWriter != null) {
-                unalignedReadsWriter.writeByRank(threadNumber, query.getId(), Utilities.getFirstWordEnsureLeadingGreaterSign(query.getHeader()), Utilities.copy0Terminated(query.getSequence()));
+        }
+    }
+
+    /**
+     * get the header of a query. If duplicates have been collapsed onto the query, then the header is given the
+     * total magnitude of all copies, as understood by MEGAN's read magnitude parser
+     *
+     * @param query
+     * @return header
+     */
+    private static String getHeaderStringWithMagnitude(final FastARecord query) {
+        final String header = query.getHeaderString();
+        if (query.getNumberOfDuplicates() == 0)
+            return header;
+        int magnitude = getMagnitude(header);
+        for (int i = 0; i < query.getNumberOfDuplicates(); i++)
+            magnitude += getMagnitude(query.getDuplicate(i).getHeaderString());
+
+        final int pos = header.indexOf(MAGNITUDE_TAG);
+        if (pos == -1)
+            return header + " " + MAGNITUDE_TAG + magnitude;
+        int end = pos + MAGNITUDE_TAG.length();
+        while (end < header.length() && Character.isDigit(header.charAt(end)))
+            end++;
+        return header.substring(0, pos) + MAGNITUDE_TAG + magnitude + header.substring(end);
+    }
+
+    /**
+     * get the magnitude given in a read header, or 1
+     *
+     * @param header
+     * @return magnitude
+     */
+    private static int getMagnitude(final String header) {
+        final int pos = header.indexOf(MAGNITUDE_TAG);
+        if (pos != -1) {
+            int end = pos + MAGNITUDE_TAG.length();
+            while (end < header.length() && Character.isDigit(header.charAt(end)))
+                end++;
+            if (end > pos + MAGNITUDE_TAG.length() && end - pos - MAGNITUDE_TAG.length() < 10)
+                return Math.max(1, Integer.parseInt(header.substring(pos + MAGNITUDE_TAG.length(), end)));
+        }
+        return 1;
+    }
+
+    /**
+     * try to extend all seeds for one reference. Keeps the best non-overlapping matches for the reference and adds them to the matches queue of the scratch
+     *
+     * @return number of seeds rejected by the ungapped x-drop filter
+     */
+    private int extendSeeds(final SeedMatchArray seedMatches, final FastARecord query, final DataForInnerLoop dataForInnerLoop, final ExtensionScratch scratch) throws IOException {
+        int rejected = 0;
+        SeedMatch previous = null;
+        final int refIndex = seedMatches.getRefIndex();
+        if (maltOptions.isUseDiagonalChaining())
+            seedMatches.chainByDiagonal(maltOptions.getChainingWindow(), maltOptions.getMinChainHits());
+        else
+            seedMatches.sort();
+        int numberOfReadMatchesForRefIndex = 0;  // we keep a short array of best hits for the given reference index
+
+        for (int i = 0; i < seedMatches.size(); i++) {
+            SeedMatch seedMatch = seedMatches.get(i);
+            if (!seedMatch.follows(previous)) {   // ignore back-to-back matches
+                // todo: debugging
+                if (refIndex >= referencesDB.getNumberOfSequences()) {
+                    System.err.println("seedMatch=" + seedMatch.toString());
+                    throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
+                }
+                final byte[] referenceSequence = referencesDB.getSequence(refIndex);
+                final byte[] sequence = dataForInnerLoop.frameSequence[seedMatch.getRank()];
+                int length = dataForInnerLoop.frameSequenceLength[seedMatch.getRank()];
+
+                final boolean passesFilter;
+                if (useUngappedXDropFilter) {
+                    passesFilter = (scratch.aligner.computeUngappedXDropScore(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength(), xDrop) >= minUngappedRawScore);
+                    if (!passesFilter)
+                        rejected++;
+                } else
+                    passesFilter = scratch.aligner.quickCheck(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset());
+
+                if (passesFilter) {
+
+                    scratch.aligner.computeAlignment(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength());
+
+                    if (scratch.aligner.getRawScore() >= minRawScore) {  // have found match with sufficient rawScore
+                        // compute bitscore and expected score
+                        scratch.aligner.computeBitScoreAndExpected();
+
+                        if (scratch.aligner.getBitScore() >= minBitScore && scratch.aligner.getExpected() <= maxExpected) {
+                            ReadMatch readMatch;
+                            boolean foundPlaceToKeepThisMatch;
+                            boolean incrementedNumberOfReadMatchesForRefIndex = false;
+
+                            if (scratch.readMatchesForRefIndex.length == 1) {  // only allowing one hit per reference...
+                                readMatch = scratch.readMatchesForRefIndex[0];
+                                numberOfReadMatchesForRefIndex = 1;
+                                foundPlaceToKeepThisMatch = true;
+                                incrementedNumberOfReadMatchesForRefIndex = true;
+                            } else {  //allow more than one hit
+                                // ensure that this match does not overlap an existing match of same or better quality
+                                boolean overlap = false;
+                                for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                                    readMatch = scratch.readMatchesForRefIndex[z];
+                                    if (readMatch.getBitScore() >= scratch.aligner.getBitScore() && readMatch.overlap(scratch.aligner.getStartReference(), scratch.aligner.getEndReference())) {
+                                        overlap = true;
+                                        break;
+                                    }
+                                }
+                                if (overlap)
+                                    continue;
+
+                                // keep this match, if array not full:
+                                if (numberOfReadMatchesForRefIndex < scratch.readMatchesForRefIndex.length) {
+                                    readMatch = scratch.readMatchesForRefIndex[numberOfReadMatchesForRefIndex++];
+                                    foundPlaceToKeepThisMatch = true;
+                                    incrementedNumberOfReadMatchesForRefIndex = true;
+                                } else {  // otherwise replace one with lower rawScore
+                                    foundPlaceToKeepThisMatch = false;
+                                    readMatch = null;
+                                    for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                                        readMatch = scratch.readMatchesForRefIndex[z];
+                                        if (scratch.aligner.getBitScore() > readMatch.getBitScore()) {
+                                            foundPlaceToKeepThisMatch = true;
+                                            break;
+                                        }
+                                    }
+                                }
+                            }
+
+                            if (foundPlaceToKeepThisMatch) {
+                                final byte[] referenceHeader;
+                                if (geneTableAccess == null)
+                                    referenceHeader = referencesDB.getHeader(refIndex);
+                                else {
+                                    int start = scratch.aligner.getStartReference();
+                                    if (start == -1) {
+                                        scratch.aligner.computeAlignmentByTraceBack();
+                                        start = scratch.aligner.getStartReference();
+                                    }
+                                    int end = scratch.aligner.getEndReference();
+                                    referenceHeader = geneTableAccess.annotateRefString(Basic.toString(referencesDB.getHeader(refIndex)), refIndex, start, end).getBytes();
+                                    //System.err.println(Basic.toString(referenceHeader));
+                                }
+
+                                byte[] text = null;
+                                byte[] rma6Text = null;
+                                if (matchesWriter != null) {
+                                    switch (matchOutputFormat) {
+                                        default:
+                                        case Text: {
+                                            text = scratch.aligner.getAlignmentText(dataForInnerLoop, seedMatch.getRank());
+                                            break;
+                                        }
+                                        case Tab: {
+                                            text = scratch.aligner.getAlignmentTab(dataForInnerLoop, null, referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
+                                            break;
+                                        }
+                                        case SAM: {
+                                            rma6Text = text = scratch.aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
+                                            break;
+                                        }
+                                        case BAM: {
+                                            text = scratch.aligner.getAlignmentBAM(dataForInnerLoop, query.getSequence(), refIndex, seedMatch.getRank()); // read name is added below
+                                            break;
+                                        }
+                                    }
+                                }
+                                if (rmaWriter != null && rma6Text == null) {
+                                    rma6Text = scratch.aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
+                                }
+                                if (percentIdentity > 0) // need to filter by percent identity. Can't do this earlier because number of matches not known until alignment has been computed
+                                {
+                                    if (text == null && rma6Text == null)  // haven't computed alignment, so number of matches not yet computed
+                                        scratch.aligner.computeAlignmentByTraceBack(); // compute number of matches
+                                    if (scratch.aligner.getIdentities() < percentIdentity * scratch.aligner.getAlignmentLength()) {  // too few identities
+                                        if (incrementedNumberOfReadMatchesForRefIndex)
+                                            numberOfReadMatchesForRefIndex--; // undo increment, won't be saving this match
+                                        continue;
+                                    }
+                                }
+                                readMatch.set(scratch.aligner.getBitScore(), refIndex, text, rma6Text, scratch.aligner.getStartReference(), scratch.aligner.getEndReference());
+                            }
+                            previous = seedMatch;
+                        }
+                    }
+                }
             }
         }
+        for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+            final ReadMatch readMatch = scratch.obtainReadMatch().set(scratch.readMatchesForRefIndex[z]);
+            if (!scratch.matchesQueue.add(readMatch))
+                scratch.recycleReadMatch(readMatch);
+        }
+        return rejected;
+    }
+
+    /**
+     * count the seed matches in a range of seed arrays
+     */
+    private int countSeedMatches(final int from, final int to) {
+        int count = 0;
+        for (int r = from; r < to; r++)
+            count += seedArrays[r].size();
+        return count;
     }
 
     /**
@@ -535,10 +726,133 @@ public class AlignmentEngine {
         return total;
     }
 
+    /**
+     * compute total number of seeds rejected by the ungapped x-drop filter
+     */
+    static long getTotalUngappedRejectedSeeds(final AlignmentEngine[] alignmentEngines) {
+        long total = 0;
+        for (AlignmentEngine alignmentEngine : alignmentEngines) {
+            total += alignmentEngine.countUngappedRejectedSeeds;
+        }
+        return total;
+    }
+
     BitSet getAlignedReferenceIds() {
         return alignedReferenceIds;
     }
 
+    /**
+     * get the scratch of the current thread, used when extending seeds in a task
+     *
+     * @return thread-specific scratch
+     */
+    private ExtensionScratch getThreadSpecificScratch() {
+        ExtensionScratch result = threadSpecificScratch.get();
+        if (result == null || result.maltOptions != maltOptions || result.alignerOptions != alignerOptions) {
+            result = new ExtensionScratch(maltOptions, alignerOptions);
+            threadSpecificScratch.set(result);
+        }
+        return result;
+    }
+
+    /**
+     * the data structures needed to extend seeds: aligner, best matches for the current reference, and the best matches for the query
+     */
+    private static class ExtensionScratch {
+        final MaltOptions maltOptions;
+        final AlignerOptions alignerOptions;
+        final BandedAligner aligner;
+        final ReadMatch[] readMatchesForRefIndex;
+        final FixedSizePriorityQueue<ReadMatch> matchesQueue;
+        final ReadMatch[] readMatchPool; // read matches that can be reused for the matches queue
+        int readMatchPoolSize = 0;
+
+        ExtensionScratch(MaltOptions maltOptions, AlignerOptions alignerOptions) {
+            this.maltOptions = maltOptions;
+            this.alignerOptions = alignerOptions;
+            aligner = new BandedAligner(alignerOptions, maltOptions.getMode());
+            matchesQueue = new FixedSizePriorityQueue<>(maltOptions.getMaxAlignmentsPerQuery(), ReadMatch.createComparator());
+            readMatchPool = new ReadMatch[maltOptions.getMaxAlignmentsPerQuery() + 1];
+            readMatchesForRefIndex = new ReadMatch[maltOptions.getMaxAlignmentsPerReference()];
+            for (int i = 0; i < readMatchesForRefIndex.length; i++)
+                readMatchesForRefIndex[i] = new ReadMatch();
+        }
+
+        /**
+         * get a read match from the pool, or a new one, if the pool is empty
+         *
+         * @return read match
+         */
+        ReadMatch obtainReadMatch() {
+            if (readMatchPoolSize > 0)
+                return readMatchPool[--readMatchPoolSize];
+            else
+                return new ReadMatch();
+        }
+
+        /**
+         * return a read match to the pool
+         *
+         * @param readMatch
+         */
+        void recycleReadMatch(ReadMatch readMatch) {
+            if (readMatchPoolSize < readMatchPool.length)
+                readMatchPool[readMatchPoolSize++] = readMatch;
+        }
+    }
+
+    /**
+     * extends the seeds of a range of references of a heavy read. Splits itself until the number of seeds is small,
+     * so that idle pool threads can steal parts. Each part keeps its own best matches, which are concatenated on the way back up
+     */
+    private class ExtendSeedsTask extends RecursiveAction {
+        private final FastARecord query;
+        private final DataForInnerLoop dataForInnerLoop;
+        private final int from;
+        private final int to;
+        final ArrayList<ReadMatch> matches = new ArrayList<>();
+        int rejected;
+
+        ExtendSeedsTask(FastARecord query, DataForInnerLoop dataForInnerLoop, int from, int to) {
+            this.query = query;
+            this.dataForInnerLoop = dataForInnerLoop;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            final int count = countSeedMatches(from, to);
+            if (to - from > 1 && count > SPLIT_GRAIN_SEEDS) {
+                // split so that both halves have about the same number of seeds:
+                int mid = from;
+                for (int sum = 0; mid < to - 1 && sum + seedArrays[mid].size() <= count / 2; mid++)
+                    sum += seedArrays[mid].size();
+                if (mid == from)
+                    mid++;
+                final ExtendSeedsTask left = new ExtendSeedsTask(query, dataForInnerLoop, from, mid);
+                final ExtendSeedsTask right = new ExtendSeedsTask(query, dataForInnerLoop, mid, to);
+                invokeAll(left, right);
+                matches.addAll(left.matches);
+                matches.addAll(right.matches);
+                rejected = left.rejected + right.rejected;
+            } else {
+                final ExtensionScratch threadScratch = getThreadSpecificScratch();
+                try {
+                    for (int r = from; r < to; r++) {
+                        rejected += extendSeeds(seedArrays[r], query, dataForInnerLoop, threadScratch);
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    while (threadScratch.matchesQueue.size() > 0) { // the matches now belong to the engine that processes the query
+                        matches.add(threadScratch.matchesQueue.poll());
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * resize the array of seed match arrays
      */
@@ -550,12 +864,43 @@ public class AlignmentEngine {
         return result;
     }
 
+    /**
+     * resize the buffers used for block lookup of seeds
+     */
+    private void growLookupBuffers(int newSize) {
+        newSize = Math.max(1024, newSize);
+        lookupHashValues = Arrays.copyOf(lookupHashValues, newSize);
+        lookupLocations = Arrays.copyOf(lookupLocations, newSize);
+        lookupRows = Arrays.copyOf(lookupRows, newSize);
+    }
+
     /**
      * initialize the read sequence 2 matches cache
      */
-    static void activateReplicateQueryCaching(int bits) {
-        System.err.println("Using replicate query cache (cache size=" + (1 << bits) + ")");
-        querySequence2MatchesCache = new QuerySequence2MatchesCache(bits);
+    static void activateReplicateQueryCaching(int bits, long maxBytes) {
+        System.err.println("Using replicate query cache (cache size=" + (1 << bits) + ", max bytes=" + maxBytes + ")");
+        querySequence2MatchesCache = new QuerySequence2MatchesCache(bits, maxBytes);
+    }
+
+    /**
+     * open the persistent matches cache for the given index and parameters
+     *
+     * @param directory   directory containing cache files
+     * @param fingerprint describes index and all parameters that influence matches
+     */
+    static void activatePersistentCaching(File directory, String fingerprint) throws IOException {
+        System.err.println("Using persistent matches cache in directory: " + directory);
+        persistentMatchesCache = new PersistentMatchesCache(directory, fingerprint);
+    }
+
+    /**
+     * write and close the persistent matches cache, if any
+     */
+    static void closePersistentCache() throws IOException {
+        if (persistentMatchesCache != null) {
+            persistentMatchesCache.close();
+            persistentMatchesCache = null;
+        }
     }
 
     /**
@@ -564,16 +909,27 @@ public class AlignmentEngine {
     static void reportStats() {
         if (querySequence2MatchesCache != null)
             querySequence2MatchesCache.reportStats();
+        if (persistentMatchesCache != null)
+            persistentMatchesCache.reportStats();
     }
 
     /**
      * do we want to collect and save quality values?
      *
-     * @return true, if mode is BLASTN, output format is SAM and input file is fastQ
+     * @return true, if mode is BLASTN, output format is SAM or BAM and input file is fastQ
      */
     private boolean isWantQualityValues() {
+        return isWantQualityValues(maltOptions, fastAReader);
+    }
+
+    /**
+     * do we want to collect and save quality values?
+     *
+     * @return true, if mode is BLASTN, output format is SAM or BAM and input file is fastQ
+     */
+    static boolean isWantQualityValues(MaltOptions maltOptions, FastAReader fastAReader) {
         return (maltOptions.getMode() == BlastMode.BlastN &&
-                maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && fastAReader.isFastQ());
+                (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) && fastAReader.isFastQ());
     }
 
     /**
@@ -581,6 +937,7 @@ public class AlignmentEngine {
      */
     class SeedMatchArray {
         int size;
+        int refIndex;
         SeedMatch[] matches;
 
         SeedMatchArray(int length) {
@@ -599,6 +956,14 @@ public class AlignmentEngine {
             matches[size++].set(queryOffset, referenceOffset, rank, seedLength);
         }
 
+        public int getRefIndex() {
+            return refIndex;
+        }
+
+        void setRefIndex(int refIndex) {
+            this.refIndex = refIndex;
+        }
+
         public void clear() {
             size = 0;
         }
@@ -606,5 +971,56 @@ public class AlignmentEngine {
         public void sort() {
             Arrays.sort(matches, 0, size, SeedMatch.getComparator());
         }
+
+        /**
+         * groups the seeds by frame and diagonal and replaces each cluster of seeds by its first seed. A group starts at the lowest
+         * diagonal not yet grouped and contains all seeds on that diagonal and the two following ones. Within a group, seeds are ordered
+         * by query position and consecutive seeds that are at most window query positions apart are in the same cluster.
+         * Clusters that contain fewer than minHits non-overlapping seeds are dropped
+         *
+         * @param window
+         * @param minHits
+         */
+        void chainByDiagonal(int window, int minHits) {
+            Arrays.sort(matches, 0, size, SeedMatch.getDiagonalComparator());
+
+            int kept = 0;
+            int i = 0;
+            while (i < size) {
+                // determine the group of seeds in the same frame whose diagonals differ from the first one by less than 3:
+                final SeedMatch groupFirst = matches[i];
+                int groupEnd = i + 1;
+                while (groupEnd < size && matches[groupEnd].getRank() == groupFirst.getRank() && matches[groupEnd].getDiagonal() - groupFirst.getDiagonal() < 3)
+                    groupEnd++;
+                if (matches[groupEnd - 1].getDiagonal() != groupFirst.getDiagonal()) // more than one diagonal, order by query position
+                    Arrays.sort(matches, i, groupEnd, SeedMatch.getComparator());
+
+                // split the group into clusters:
+                int j = i;
+                while (j < groupEnd) {
+                    final SeedMatch first = matches[j];
+                    int hits = 1;
+                    int coveredUpTo = first.getQueryOffset() + first.getSeedLength(); // end of last counted hit
+                    int end = first.getQueryOffset() + first.getSeedLength(); // end of cluster in query
+                    int k = j + 1;
+                    while (k < groupEnd && matches[k].getQueryOffset() <= end + window) {
+                        final SeedMatch next = matches[k];
+                        if (next.getQueryOffset() >= coveredUpTo) { // does not overlap previous hit
+                            hits++;
+                            coveredUpTo = next.getQueryOffset() + next.getSeedLength();
+                        }
+                        end = Math.max(end, next.getQueryOffset() + next.getSeedLength());
+                        k++;
+                    }
+                    if (hits >= minHits) { // keep first seed of cluster, swap to retain all seed objects in array
+                        matches[j] = matches[kept];
+                        matches[kept++] = first;
+                    }
+                    j = k;
+                }
+                i = groupEnd;
+            }
+            size = kept;
+        }
     }
 }
@@ -108,6 +108,7 @@ public class MaltBuild {
         options.comment("Performance:");
         final int numberOfThreads = options.getOption("-t", "threads", "Number of worker threads", Runtime.getRuntime().availableProcessors());
         final int stepSize = options.getOption("-st", "step", "Step size used to advance seed; a value greater than 1 will reduce index size, but also sensitivity", 1, 1, 100);
+        final int memoryBudgetGB = options.getOption("-mem", "memoryBudget", "Memory budget in GB for building tables out-of-core, streaming references from disk (0=build in memory)", 0);
 
         options.comment("Seed:");
         String[] shapes = options.getOption("-ss", "shapes", "Seed shape(s)", new String[]{"default"});
@@ -152,9 +153,11 @@ public class MaltBuild {
         ProgramProperties.put(IdParser.PROPERTIES_ACCESSION_TAGS, options.getOption("-atags", "accessionTags", "List of accession tags", ProgramProperties.get(IdParser.PROPERTIES_ACCESSION_TAGS, IdParser.ACCESSION_TAGS)));
 
         final boolean saveFirstWordOfReferenceHeaderOnly = options.getOption("-fwo", "firstWordOnly", "Save only first word of reference header", false);
+        final boolean packDNA = options.getOption("-pk", "packDNA", "Store DNA reference sequences using two bits per letter (ignored for protein references, index can't be read by older versions of MaltRun)", false);
         final int randomSeed = options.getOption("rns", "random", "Random number generator seed", 666);
         final float hashTableLoadFactor = options.getOption("hsf", "hashScaleFactor", "Hash table scale factor", 0.9f, 0.1f, 1.0f);
         final boolean buildTableInMemory = options.getOption("btm", "buildTableInMemory", "Build the hash table in memory and then save (uses more memory, is much faster)", true);
+        final boolean buildTableBySorting = options.getOption("bts", "buildTableBySorting", "Build the hash table by radix-sorting all seeds and writing rows sequentially (uses more memory)", false);
         final boolean doBuildTables = !options.getOption("!xX", "xSkipTable", "Don't recompute index and tables, just compute profile support", false);
 
         final boolean lookInside = options.getOption("-ex", "extraStrict", "When given an input directory, look inside every GFF file to check that it is indeed in GFF3 format", false);
@@ -164,6 +167,8 @@ public class MaltBuild {
 
         if (sequenceType == null)
             throw new IOException("Sequence type undefined");
+        if (memoryBudgetGB < 0)
+            throw new UsageException("--memoryBudget: must be 0 or positive");
 
         if (inputFiles.size() == 1) {
             final File file = new File(inputFiles.get(0));
@@ -233,7 +238,9 @@ public class MaltBuild {
         // load the reference file:
         final ReferencesDBBuilder referencesDB = new ReferencesDBBuilder();
         System.err.println(String.format("Number input files: %,12d", inputFiles.size()));
-        referencesDB.loadFastAFiles(inputFiles, referenceAlphabet);
+        if (memoryBudgetGB > 0)
+            System.err.println("Building out-of-core, memory budget: " + memoryBudgetGB + "GB");
+        referencesDB.loadFastAFiles(inputFiles, referenceAlphabet, memoryBudgetGB == 0, numberOfThreads); // out-of-core: keep headers only
         System.err.println(String.format("Number of sequences:%,12d", referencesDB.getNumberOfSequences()));
         System.err.println(String.format("Number of letters:%,14d", referencesDB.getNumberOfLetters()));
 
@@ -245,7 +252,12 @@ public class MaltBuild {
                 System.err.println("BUILDING table (" + tableNumber + ")...");
                 final ReferencesHashTableBuilder hashTable = new ReferencesHashTableBuilder(sequenceType, seedAlphabet, seedShape,
                         referencesDB.getNumberOfSequences(), referencesDB.getNumberOfLetters(), randomSeed, maxHitsPerSeed, hashTableLoadFactor, stepSize);
-                hashTable.buildTable(new File(indexDirectory, "table" + tableNumber + ".idx"), new File(indexDirectory, "table" + tableNumber + ".db"), referencesDB, numberOfThreads, buildTableInMemory);
+                if (memoryBudgetGB > 0)
+                    hashTable.buildTableOutOfCore(new File(indexDirectory, "table" + tableNumber + ".idx"), new File(indexDirectory, "table" + tableNumber + ".db"), referencesDB, memoryBudgetGB * (1L << 30));
+                else if (buildTableBySorting)
+                    hashTable.buildTableBySorting(new File(indexDirectory, "table" + tableNumber + ".idx"), new File(indexDirectory, "table" + tableNumber + ".db"), referencesDB, numberOfThreads, buildTableInMemory);
+                else
+                    hashTable.buildTable(new File(indexDirectory, "table" + tableNumber + ".idx"), new File(indexDirectory, "table" + tableNumber + ".db"), referencesDB, numberOfThreads, buildTableInMemory);
                 hashTable.saveIndexFile(new File(indexDirectory, "index" + tableNumber + ".idx"));
             }
         }
@@ -281,7 +293,7 @@ public class MaltBuild {
         }
 
         if (doBuildTables) // don't write until after running classification mappers, as they add tags to reference sequences
-            referencesDB.save(new File(indexDirectory, "ref.idx"), new File(indexDirectory, "ref.db"), new File(indexDirectory, "ref.inf"), saveFirstWordOfReferenceHeaderOnly);
+            referencesDB.save(new File(indexDirectory, "ref.idx"), new File(indexDirectory, "ref.db"), new File(indexDirectory, "ref.inf"), saveFirstWordOfReferenceHeaderOnly, packDNA && sequenceType == SequenceType.DNA);
 
         if (gffFiles.size() > 0) {
             // setup gene item creator, in particular accession mapping
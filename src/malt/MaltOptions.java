@@ -22,6 +22,8 @@ package malt;
 import jloda.util.BlastMode;
 import malt.data.IAlphabet;
 
+import java.util.zip.Deflater;
+
 /**
  * maintains the set of Malt options
  * Daniel Huson, 8.2014
@@ -30,7 +32,7 @@ public class MaltOptions {
     private String commandLine;
 
     public enum MatchOutputFormat {
-        SAM, Tab, Text;
+        SAM, BAM, Tab, Text;
 
         public static MatchOutputFormat valueOfIgnoreCase(String label) {
             for (MatchOutputFormat type : values())
@@ -59,11 +61,15 @@ public class MaltOptions {
     private MatchOutputFormat matchOutputFormat = MatchOutputFormat.SAM;
 
     private boolean sparseSAM = false;
+    private boolean singlePassSAM = true;
+    private boolean samAllSQUpFront = false;
 
     private boolean gzipMatches = true;
     private boolean gzipOrganisms = true;
     private boolean gzipAlignedReads = true;
     private boolean gzipUnalignedReads = true;
+    private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+    private int gzipThreads = 1;
 
     private boolean useWeightedLCA = false;
     private float lcaCoveragePercent = 80.0f;
@@ -78,8 +84,15 @@ public class MaltOptions {
     private int maxSeedsPerReference = 20;
     private int maxSeedsPerOffsetPerFrame = 100;
 
+    private boolean useDiagonalChaining = false;
+    private int chainingWindow = 40;
+    private int minChainHits = 2;
+
     private int shift = 1;
     private int numberOfThreads = 8;
+    private int queryBatchSize = 100;
+    private int splitHeavyReadSeeds = 2000;
+    private int collapseDuplicatesWindow = 0;
 
     private IAlphabet queryAlphabet;
 
@@ -192,6 +205,30 @@ public class MaltOptions {
         this.maxSeedsPerReference = maxSeedsPerReference;
     }
 
+    public boolean isUseDiagonalChaining() {
+        return useDiagonalChaining;
+    }
+
+    public void setUseDiagonalChaining(boolean useDiagonalChaining) {
+        this.useDiagonalChaining = useDiagonalChaining;
+    }
+
+    public int getChainingWindow() {
+        return chainingWindow;
+    }
+
+    public void setChainingWindow(int chainingWindow) {
+        this.chainingWindow = chainingWindow;
+    }
+
+    public int getMinChainHits() {
+        return minChainHits;
+    }
+
+    public void setMinChainHits(int minChainHits) {
+        this.minChainHits = minChainHits;
+    }
+
     public int getMaxSeedsPerOffsetPerFrame() {
         return maxSeedsPerOffsetPerFrame;
     }
@@ -260,6 +297,25 @@ public class MaltOptions {
         this.gzipUnalignedReads = gzipUnalignedReads;
     }
 
+    public int getGzipLevel() {
+        return gzipLevel;
+    }
+
+    public void setGzipLevel(int gzipLevel) {
+        this.gzipLevel = gzipLevel;
+    }
+
+    /**
+     * number of threads used to compress each gzip or BAM output file and to decompress BGZF input
+     */
+    public int getGzipThreads() {
+        return gzipThreads;
+    }
+
+    public void setGzipThreads(int gzipThreads) {
+        this.gzipThreads = gzipThreads;
+    }
+
     public float getTopPercentLCA() {
         return topPercentLCA;
     }
@@ -300,6 +356,36 @@ public class MaltOptions {
         this.queryAlphabet = queryAlphabet;
     }
 
+    public int getQueryBatchSize() {
+        return queryBatchSize;
+    }
+
+    public void setQueryBatchSize(int queryBatchSize) {
+        this.queryBatchSize = queryBatchSize;
+    }
+
+    /**
+     * number of seed matches from which on the seeds of a read are extended in parallel tasks (0=never)
+     */
+    public int getSplitHeavyReadSeeds() {
+        return splitHeavyReadSeeds;
+    }
+
+    public void setSplitHeavyReadSeeds(int splitHeavyReadSeeds) {
+        this.splitHeavyReadSeeds = splitHeavyReadSeeds;
+    }
+
+    /**
+     * number of consecutive input reads within which reads with identical sequences are collapsed and aligned only once (0=off)
+     */
+    public int getCollapseDuplicatesWindow() {
+        return collapseDuplicatesWindow;
+    }
+
+    public void setCollapseDuplicatesWindow(int collapseDuplicatesWindow) {
+        this.collapseDuplicatesWindow = collapseDuplicatesWindow;
+    }
+
     public boolean isUseReplicateQueryCaching() {
         return useReplicateQueryCaching;
     }
@@ -348,6 +434,8 @@ public class MaltOptions {
     public String getMatchesOutputSuffix() {
         if (matchOutputFormat == MatchOutputFormat.SAM)
             return "." + mode.name().toLowerCase() + ".sam";
+        else if (matchOutputFormat == MatchOutputFormat.BAM)
+            return "." + mode.name().toLowerCase() + ".bam";
         else if (matchOutputFormat == MatchOutputFormat.Tab)
             return "." + mode.name().toLowerCase() + ".tab";
         else return "." + mode.name().toLowerCase();
@@ -361,6 +449,32 @@ public class MaltOptions {
         this.sparseSAM = sparseSAM;
     }
 
+    public boolean isSinglePassSAM() {
+        return singlePassSAM;
+    }
+
+    public void setSinglePassSAM(boolean singlePassSAM) {
+        this.singlePassSAM = singlePassSAM;
+    }
+
+    public boolean isSamAllSQUpFront() {
+        return samAllSQUpFront;
+    }
+
+    public void setSamAllSQUpFront(boolean samAllSQUpFront) {
+        this.samAllSQUpFront = samAllSQUpFront;
+    }
+
+    /**
+     * are the read group tags added to SAM lines as they are written, rather than when rewriting a temporary file?
+     *
+     * @param singlePassSAM is single-pass SAM used for the current output file?
+     * @return true, if SAM body lines are written in their final form
+     */
+    public boolean isSamReadGroupWrittenDirectly(boolean singlePassSAM) {
+        return getMatchOutputFormat() == MatchOutputFormat.SAM && !isSparseSAM() && (singlePassSAM || isSamAllSQUpFront());
+    }
+
     public void setCommandLine(String commandLine) {
         this.commandLine = commandLine;
     }
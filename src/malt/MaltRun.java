@@ -35,19 +35,14 @@ import megan.core.Document;
 import megan.genes.GeneItemAccessor;
 import megan.util.ReadMagnitudeParser;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.*;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.BitSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * the MALT metagenome alignment tool
@@ -60,6 +55,10 @@ public class MaltRun {
     private long totalAlignedReads = 0;
     private long totalAlignments = 0;
 
+    private ExecutorService alignmentExecutor;
+    private ExecutorService finalizationExecutor;
+    private boolean isServerMode = false; // in server mode, a failure while aligning fails the job, not the server
+
     /**
      * launch the MALT program
      */
@@ -111,40 +110,55 @@ public class MaltRun {
         SequenceType querySequenceType = Utilities.getQuerySequenceTypeFromMode(maltOptions.getMode());
         SequenceType referenceSequenceType = Utilities.getReferenceSequenceTypeFromMode(maltOptions.getMode());
         options.comment("Input:");
-        List<String> inputFileNames = options.getOptionMandatory("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<String>());
+        List<String> inputFileNames = options.getOption("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<String>());
+        final String spoolDirectory = options.getOption("sd", "spoolDir", "Run as server: keep the index loaded and process job files (*.job) placed in this directory", "");
         String indexDirectory = options.getOptionMandatory("d", "index", "Index directory as generated by MaltBuild", "");
 
         options.comment("Output:");
         final List<String> outputRMAFileNames = options.getOption("o", "output", "Output RMA file(s) or directory", new LinkedList<String>());
-        if (outputRMAFileNames.size() > 0 || options.isDoHelp())
+        if (outputRMAFileNames.size() > 0 || spoolDirectory.length() > 0 || options.isDoHelp())
             maltOptions.setSaveUnalignedToRMA(options.getOption("iu", "includeUnaligned", "Include unaligned queries in RMA output file", false));
 
         final List<String> outputMatchesFileNames = options.getOption("a", "alignments", "Output alignment file(s) or directory or STDOUT", new LinkedList<String>());
-        if (outputMatchesFileNames.size() > 0 || options.isDoHelp()) {
+        if (outputMatchesFileNames.size() > 0 || spoolDirectory.length() > 0 || options.isDoHelp()) {
             maltOptions.setMatchOutputFormat(options.getOption("f", "format", "Alignment output format", MaltOptions.MatchOutputFormat.values(), maltOptions.getMatchOutputFormat().toString()));
-            maltOptions.setGzipMatches(options.getOption("za", "gzipAlignments", "Compress alignments using gzip", maltOptions.isGzipMatches()));
+            maltOptions.setGzipMatches(options.getOption("za", "gzipAlignments", "Compress alignments using gzip (BAM files are always compressed)", maltOptions.isGzipMatches()));
+        }
+        if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) {
+            if (maltOptions.getMode() != BlastMode.BlastN)
+                throw new UsageException("--format BAM: only supported for BlastN mode");
+            maltOptions.setGzipMatches(false); // BAM uses its own compression
         }
 
-        if ((maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && maltOptions.getMode() == BlastMode.BlastN) || options.isDoHelp()) {
+        if (((maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) && maltOptions.getMode() == BlastMode.BlastN) || options.isDoHelp()) {
             alignerOptions.setSamSoftClipping(options.getOption("ssc", "samSoftClip", "Use soft clipping in SAM files (BlastN mode only)", alignerOptions.isSamSoftClipping()));
         }
         if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || options.isDoHelp()) {
             maltOptions.setSparseSAM(options.getOption("sps", "sparseSAM", "Produce sparse SAM format (smaller, faster, but only suitable for MEGAN)", maltOptions.isSparseSAM()));
+            maltOptions.setSinglePassSAM(options.getOption("sps1", "singlePassSAM", "Write SAM lines in final form and prepend the header by concatenation, rather than rewriting a temporary file", maltOptions.isSinglePassSAM()));
+            maltOptions.setSamAllSQUpFront(options.getOption("asq", "allSQ", "Write @SQ lines for all references at the start of a SAM file, rather than only for aligned references at the end", maltOptions.isSamAllSQUpFront()));
         }
         final List<String> outputAlignedFileNames = options.getOption("oa", "outAligned", "Aligned reads output file(s) or directory or STDOUT", new LinkedList<String>());
-        if (outputAlignedFileNames.size() > 0 || options.isDoHelp()) {
+        if (outputAlignedFileNames.size() > 0 || spoolDirectory.length() > 0 || options.isDoHelp()) {
             maltOptions.setGzipAlignedReads(options.getOption("zal", "gzipAligned", "Compress aligned reads output using gzip", maltOptions.isGzipAlignedReads()));
         }
         final List<String> outputUnAlignedFileNames = options.getOption("ou", "outUnaligned", "Unaligned reads output file(s) or directory or STDOUT", new LinkedList<String>());
-        if (outputUnAlignedFileNames.size() > 0 || options.isDoHelp()) {
+        if (outputUnAlignedFileNames.size() > 0 || spoolDirectory.length() > 0 || options.isDoHelp()) {
             maltOptions.setGzipUnalignedReads(options.getOption("zul", "gzipUnaligned", "Compress unaligned reads output using gzip", maltOptions.isGzipUnalignedReads()));
         }
 
         options.comment("Performance:");
         maltOptions.setNumberOfThreads(options.getOption("t", "numThreads", "Number of worker threads", Runtime.getRuntime().availableProcessors()));
+        maltOptions.setGzipThreads(options.getOption("zt", "gzipThreads", "Number of threads used to compress each gzip or BAM output file and to decompress BGZF input (each output file uses its own threads)", maltOptions.getGzipThreads()));
+        maltOptions.setGzipLevel(options.getOption("zl", "gzipLevel", "Compression level for gzip and BAM output (-1=default, 1=fastest, 9=best)", maltOptions.getGzipLevel()));
         final MaltOptions.MemoryMode memoryMode = MaltOptions.MemoryMode.valueOf(options.getOption("mem", "memoryMode", "Memory mode", MaltOptions.MemoryMode.values(), MaltOptions.MemoryMode.load.toString()));
         final int maxNumberOfSeedShapes = options.getOption("mt", "maxTables", "Set the maximum number of seed tables to use (0=all)", 0);
+        final int referenceCacheMB = options.getOption("rcm", "refCacheMB", "Maximum size in MB of reference sequences cached in memory, useful with memory modes page and map (0=no limit, or a quarter of the number of letters, if the index is packed)", 0);
+        maltOptions.setQueryBatchSize(options.getOption("qbs", "queryBatchSize", "Number of queries that a worker thread claims at a time (1=no batching)", maltOptions.getQueryBatchSize()));
+        maltOptions.setSplitHeavyReadSeeds(options.getOption("shr", "splitHeavyReads", "Extend the seeds of a read in parallel tasks, if it has at least this many seed matches (0=never)", maltOptions.getSplitHeavyReadSeeds()));
         maltOptions.setUseReplicateQueryCaching(options.getOption("rqc", "replicateQueryCache", "Cache results for replicated queries", false));
+        maltOptions.setCollapseDuplicatesWindow(options.getOption("cdw", "collapseDuplicatesWindow", "Align reads with identical sequences only once, if they occur within this many consecutive reads (0=off)", maltOptions.getCollapseDuplicatesWindow()));
+        final String persistentCacheDirectory = options.getOption("pc", "persistentCache", "Directory in which matches of queries are cached across runs that use the same index and parameters", "");
 
         options.comment("Filter:");
         maltOptions.setMinBitScore(options.getOption("b", "minBitScore", "Minimum bit score", maltOptions.getMinBitScore()));
@@ -202,14 +216,26 @@ public class MaltRun {
         maltOptions.setMaxSeedsPerOffsetPerFrame(options.getOption("spf", "maxSeedsPerFrame", "Maximum number of seed matches per offset per read frame", maltOptions.getMaxSeedsPerOffsetPerFrame()));
         maltOptions.setMaxSeedsPerReference(options.getOption("spr", "maxSeedsPerRef", "Maximum number of seed matches per read and reference", maltOptions.getMaxSeedsPerReference()));
         maltOptions.setShift(options.getOption("sh", "seedShift", "Seed shift", maltOptions.getShift()));
+        maltOptions.setUseDiagonalChaining(options.getOption("dc", "diagonalChaining", "Align only one seed per cluster of seeds on the same diagonal, requiring a minimum number of hits per cluster", maltOptions.isUseDiagonalChaining()));
+        if (options.isDoHelp() || maltOptions.isUseDiagonalChaining()) {
+            maltOptions.setChainingWindow(options.getOption("cw", "chainingWindow", "Maximum distance in query between seeds in the same diagonal cluster", maltOptions.getChainingWindow()));
+            maltOptions.setMinChainHits(options.getOption("mch", "minChainHits", "Minimum number of non-overlapping seeds in a diagonal cluster", maltOptions.getMinChainHits()));
+        }
+        alignerOptions.setUseUngappedXDropFilter(options.getOption("uxf", "ungappedXDropFilter", "Discard seed matches whose ungapped x-drop extension scores too low, before banded alignment (faster, but may miss gapped alignments)", alignerOptions.isUseUngappedXDropFilter()));
+        if (options.isDoHelp() || alignerOptions.isUseUngappedXDropFilter()) {
+            alignerOptions.setUngappedXDrop(options.getOption("ux", "ungappedXDrop", "X-drop for ungapped extension (0: use default for mode)", 0));
+            alignerOptions.setUngappedMinRawScore(options.getOption("umr", "ungappedMinRawScore", "Minimum raw score of ungapped extension (0: use default for mode)", 0));
+        }
 
         options.comment("Banded alignment parameters:");
         alignerOptions.setGapOpenPenalty(options.getOption("go", "gapOpen", "Gap open penalty", referenceSequenceType == SequenceType.DNA ? 7 : 11));
         alignerOptions.setGapExtensionPenalty(options.getOption("ge", "gapExtend", "Gap extension penalty", referenceSequenceType == SequenceType.DNA ? 3 : 1));
         alignerOptions.setBand(options.getOption("bd", "band", "Band width/2 for banded alignment", alignerOptions.getBand()));
+        alignerOptions.setUseScoreOnlyKernel(options.getOption("sok", "scoreOnlyKernel", "Compute alignment scores in linear memory first, filling the full alignment matrices only for alignments that are reported", alignerOptions.isUseScoreOnlyKernel()));
 
         options.comment(ArgsOptions.OTHER);
         int replicateQueryCacheBits = options.getOption("rqcb", "replicateQueryCacheBits", "Bits used for caching replicate queries (size is then 2^bits)", 20);
+        final int replicateQueryCacheMB = options.getOption("rqcm", "replicateQueryCacheMB", "Maximum size in MB of sequences and matches kept in the replicate query cache", 1024);
         final boolean showAPart = options.getOption("xP", "xPart", "Show part of the table in human readable form for debugging", false);
 
         options.done();
@@ -219,8 +245,18 @@ public class MaltRun {
 
         // END OF OPTIONS
 
-        if (replicateQueryCacheBits < 10 || replicateQueryCacheBits > 31)
-            throw new IOException("replicateQueryCacheBits: supported range is 10-31");
+        if (replicateQueryCacheBits < 10 || replicateQueryCacheBits > 30)
+            throw new IOException("replicateQueryCacheBits: supported range is 10-30");
+        if (replicateQueryCacheMB < 1)
+            throw new IOException("replicateQueryCacheMB: must be at least 1");
+        if (referenceCacheMB < 0)
+            throw new IOException("refCacheMB: must be 0 or positive");
+        if (maltOptions.getQueryBatchSize() < 1)
+            throw new IOException("queryBatchSize: must be at least 1");
+        if (maltOptions.getCollapseDuplicatesWindow() < 0 || maltOptions.getCollapseDuplicatesWindow() > FileWriterRanked.RING_CAPACITY)
+            throw new IOException("collapseDuplicatesWindow: supported range is 0-" + FileWriterRanked.RING_CAPACITY); // duplicates are written out of order, must stay within the output ring
+        if (maltOptions.getCollapseDuplicatesWindow() > 0 && (outputRMAFileNames.size() > 0 || spoolDirectory.length() > 0))
+            ReadMagnitudeParser.setEnabled(true); // collapsed reads are written to RMA files with their number of copies as magnitude
 
         // make sure that the index contains the correct type of sequences:
         {
@@ -247,9 +283,16 @@ public class MaltRun {
             throw new UsageException("Undefined reference sequence type: " + referenceSequenceType);
 
         // check consistency of all options:
-        if (inputFileNames.size() == 0)
-            throw new UsageException("You must specify at least one input file");
-        Utilities.checkFileExists(new File(inputFileNames.iterator().next()));
+        if (spoolDirectory.length() > 0) {
+            if (inputFileNames.size() > 0)
+                throw new UsageException("--spoolDir: illegal to also specify input files");
+            if (!Basic.isDirectory(spoolDirectory))
+                throw new UsageException("--spoolDir: not a directory: " + spoolDirectory);
+        } else {
+            if (inputFileNames.size() == 0)
+                throw new UsageException("You must specify at least one input file");
+            Utilities.checkFileExists(new File(inputFileNames.iterator().next()));
+        }
 
         for (String aName : outputRMAFileNames) {
             if (outputAlignedFileNames.contains(aName))
@@ -276,6 +319,12 @@ public class MaltRun {
         // load the reference file:
         final ReferencesDBAccess referencesDB = new ReferencesDBAccess(memoryMode, new File(indexDirectory, "ref.idx"), new File(indexDirectory, "ref.db"), new File(indexDirectory, "ref.inf"));
         alignerOptions.setReferenceDatabaseLength(referencesDB.getNumberOfLetters());
+        if (referenceCacheMB > 0)
+            referencesDB.setMaxCachedBytes(referenceCacheMB * (1L << 20));
+        else if (referencesDB.isPackedDNA()) { // otherwise, decoded sequences would accumulate next to the packed ones and use more memory than an unpacked index
+            referencesDB.setMaxCachedBytes(Math.max(64L << 20, referencesDB.getNumberOfLetters() / 4));
+            System.err.println(String.format("Decoded reference sequences cached: %,d bytes", referencesDB.getMaxCachedBytes()));
+        }
 
         int numberOfTables = ReferencesHashTableAccess.determineNumberOfTables(indexDirectory);
         if (maxNumberOfSeedShapes > 0 && maxNumberOfSeedShapes < numberOfTables) {
@@ -294,8 +343,8 @@ public class MaltRun {
         }
         // table.show();
 
-        // load mapping files, if we are going to generate RMA
-        if (outputRMAFileNames.size() > 0) {
+        // load mapping files, if we are going to generate RMA, or a job might ask for it
+        if (outputRMAFileNames.size() > 0 || spoolDirectory.length() > 0) {
             MappingManager.loadMappings(cNames, indexDirectory);
         }
 
@@ -310,8 +359,21 @@ public class MaltRun {
         int fileNumber = 0;
         System.err.println("--- ALIGNING ---:");
         if (maltOptions.isUseReplicateQueryCaching())
-            AlignmentEngine.activateReplicateQueryCaching(replicateQueryCacheBits);
+            AlignmentEngine.activateReplicateQueryCaching(replicateQueryCacheBits, replicateQueryCacheMB * (1L << 20));
+        if (persistentCacheDirectory.length() > 0)
+            AlignmentEngine.activatePersistentCaching(new File(persistentCacheDirectory),
+                    getPersistentCacheFingerprint(indexDirectory, numberOfTables, nameOfProteinScoringMatrix, maltOptions, alignerOptions));
 
+        alignmentExecutor = new ForkJoinPool(maltOptions.getNumberOfThreads()); // shared by all input files, idle threads steal parts of heavy reads
+        finalizationExecutor = Executors.newSingleThreadExecutor(); // output of one file is finalized while the next file is aligned
+
+        if (spoolDirectory.length() > 0) {
+            isServerMode = true;
+            fileNumber = runSpoolServer(new File(spoolDirectory), alignerOptions, maltOptions, referencesDB, hashTables, geneTableAccess);
+        }
+
+        Future<?> previousFinalization = null;
+        String previousInFile = null;
         for (String inFile : inputFileNames) {
             try {
                 if ((new File(inFile).exists())) {
@@ -320,8 +382,12 @@ public class MaltRun {
                     String alignedReadsOutputFile = getOutputFileName(fileNumber, inputFileNames, outputAlignedFileNames, "-aligned.fna", maltOptions.isGzipAlignedReads());
                     String unalignedReadsOutputFile = getOutputFileName(fileNumber, inputFileNames, outputUnAlignedFileNames, "-unaligned.fna", maltOptions.isGzipUnalignedReads());
 
-                    launchAlignmentThreads(alignerOptions, maltOptions, inFile, rmaOutputFile, matchesOutputFile,
+                    final Future<?> finalization = launchAlignmentThreads(alignerOptions, maltOptions, inFile, rmaOutputFile, matchesOutputFile,
                             alignedReadsOutputFile, unalignedReadsOutputFile, referencesDB, hashTables, geneTableAccess);
+                    // wait for the output of the previous file, so that at most one file is finalized while another is aligned:
+                    waitForFinalization(previousFinalization, previousInFile);
+                    previousFinalization = finalization;
+                    previousInFile = inFile;
                 } else {
                     System.err.println("File not found: '" + inFile + "', skipped");
                 }
@@ -332,16 +398,20 @@ public class MaltRun {
                 fileNumber++;
             }
         }
+        waitForFinalization(previousFinalization, previousInFile);
 
         // close everything:
+        alignmentExecutor.shutdownNow();
+        finalizationExecutor.shutdownNow();
         referencesDB.close();
         for (int t = 0; t < numberOfTables; t++) {
             hashTables[t].close();
         }
 
         AlignmentEngine.reportStats();
-        if (inputFileNames.size() > 1) {
-            System.err.println(String.format("Number of input files: %10d", inputFileNames.size()));
+        AlignmentEngine.closePersistentCache();
+        if (fileNumber > 1) {
+            System.err.println(String.format("Number of input files: %10d", fileNumber));
             System.err.println(String.format("Total num. of queries: %10d", totalReads));
             System.err.println(String.format("Total aligned queries: %10d", totalAlignedReads));
             System.err.println(String.format("Total num. alignments: %10d", totalAlignments));
@@ -350,22 +420,79 @@ public class MaltRun {
     }
 
     /**
-     * run search on file of input sequences
+     * describes the index and all parameters that influence the matches computed for a query. Runs that share this
+     * fingerprint can share persistently cached matches
+     *
+     * @return fingerprint
      */
-    private void launchAlignmentThreads(final AlignerOptions alignerOptions, final MaltOptions maltOptions, final String infile, final String rmaOutputFile,
-                                        final String matchesOutputFile,
-                                        final String alignedReadsOutputFile, final String unalignedReadsOutputFile,
-                                        final ReferencesDBAccess referencesDB, final ReferencesHashTableAccess[] tables,
-                                        final GeneItemAccessor geneTableAccess) throws IOException {
+    private static String getPersistentCacheFingerprint(String indexDirectory, int numberOfTables, String nameOfProteinScoringMatrix,
+                                                        MaltOptions maltOptions, AlignerOptions alignerOptions) throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("index=").append(new File(indexDirectory).getCanonicalPath());
+        final List<String> names = new ArrayList<>(Arrays.asList("ref.idx", "ref.db", "ref.inf", "aadd.idx", "aadd.dbx"));
+        for (int t = 0; t < numberOfTables; t++) { // every seed table used
+            names.add("index" + t + ".idx");
+            names.add("table" + t + ".idx");
+            names.add("table" + t + ".db");
+        }
+        for (String name : names) {
+            final File file = new File(indexDirectory, name);
+            if (file.exists())
+                buf.append(" ").append(name).append("=").append(file.length()).append(":").append(file.lastModified());
+        }
+        buf.append(" tables=").append(numberOfTables);
+        buf.append(" mode=").append(maltOptions.getMode());
+        buf.append(" alignmentType=").append(alignerOptions.getAlignmentType());
+        buf.append(" matrix=").append(nameOfProteinScoringMatrix != null ? nameOfProteinScoringMatrix : alignerOptions.getMatchScore() + "/" + alignerOptions.getMismatchScore());
+        buf.append(" gaps=").append(alignerOptions.getGapOpenPenalty()).append("/").append(alignerOptions.getGapExtensionPenalty());
+        buf.append(" band=").append(alignerOptions.getBand());
+        buf.append(" lambda=").append(alignerOptions.getLambda()).append(" K=").append(alignerOptions.getK());
+        buf.append(" minBitScore=").append(maltOptions.getMinBitScore());
+        buf.append(" maxExpected=").append(maltOptions.getMaxExpected());
+        buf.append(" minProportionIdentity=").append(maltOptions.getMinProportionIdentity());
+        buf.append(" maxAlignmentsPerQuery=").append(maltOptions.getMaxAlignmentsPerQuery());
+        buf.append(" maxAlignmentsPerRef=").append(maltOptions.getMaxAlignmentsPerReference());
+        buf.append(" maxSeedsPerFrame=").append(maltOptions.getMaxSeedsPerOffsetPerFrame());
+        buf.append(" maxSeedsPerRef=").append(maltOptions.getMaxSeedsPerReference());
+        buf.append(" shift=").append(maltOptions.getShift());
+        buf.append(" strands=").append(maltOptions.isDoForward()).append("/").append(maltOptions.isDoReverse());
+        buf.append(" chaining=").append(maltOptions.isUseDiagonalChaining());
+        if (maltOptions.isUseDiagonalChaining())
+            buf.append(":").append(maltOptions.getChainingWindow()).append("/").append(maltOptions.getMinChainHits());
+        buf.append(" ungappedXDrop=").append(alignerOptions.isUseUngappedXDropFilter());
+        if (alignerOptions.isUseUngappedXDropFilter())
+            buf.append(":").append(alignerOptions.getUngappedXDrop(maltOptions.getMode())).append("/").append(alignerOptions.getUngappedMinRawScore(maltOptions.getMode()));
+        buf.append(" format=").append(maltOptions.getMatchOutputFormat());
+        buf.append(" sparseSAM=").append(maltOptions.isSparseSAM());
+        buf.append(" softClipping=").append(alignerOptions.isSamSoftClipping());
+        return buf.toString();
+    }
+
+    /**
+     * run search on file of input sequences. Returns as soon as all sequences have been aligned, the output files are then
+     * closed and post-processed in the background
+     *
+     * @return future that completes when all output has been written
+     */
+    private Future<?> launchAlignmentThreads(final AlignerOptions alignerOptions, final MaltOptions maltOptions, final String infile, final String rmaOutputFile,
+                                             final String matchesOutputFile,
+                                             final String alignedReadsOutputFile, final String unalignedReadsOutputFile,
+                                             final ReferencesDBAccess referencesDB, final ReferencesHashTableAccess[] tables,
+                                             final GeneItemAccessor geneTableAccess) throws IOException {
 
-        final ExecutorService executor = Executors.newFixedThreadPool(maltOptions.getNumberOfThreads());
         final CountDownLatch countDownLatch = new CountDownLatch(maltOptions.getNumberOfThreads());
 
-        final FastAReader fastAReader = new FastAReader(infile, maltOptions.getQueryAlphabet(), new ProgressPercentage("+++++ Aligning file: " + infile));
+        final FastAReader fastAReader = new FastAReader(infile, maltOptions.getQueryAlphabet(), new ProgressPercentage("+++++ Aligning file: " + infile), maltOptions.getGzipThreads());
+        if (maltOptions.getCollapseDuplicatesWindow() > 0) // each batch is a window in which duplicates are collapsed
+            fastAReader.startBatchProducer(maltOptions.getCollapseDuplicatesWindow(), 2 * maltOptions.getNumberOfThreads(), AlignmentEngine.isWantQualityValues(maltOptions, fastAReader), true);
+        else if (maltOptions.getQueryBatchSize() > 1)
+            fastAReader.startBatchProducer(maltOptions.getQueryBatchSize(), 2 * maltOptions.getNumberOfThreads(), AlignmentEngine.isWantQualityValues(maltOptions, fastAReader));
+
+        final boolean singlePassSAM = maltOptions.isSinglePassSAM() && !(matchesOutputFile != null && matchesOutputFile.toLowerCase().endsWith(".zip")); // can't concatenate zip files
 
         final String matchesOutputFileUsed;
         final boolean usingTemporarySAMOutputFile;
-        if (matchesOutputFile != null && maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !maltOptions.isSparseSAM()) {
+        if (matchesOutputFile != null && maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !maltOptions.isSparseSAM() && !maltOptions.isSamAllSQUpFront()) {
             matchesOutputFileUsed = Basic.getTemporaryFileName(matchesOutputFile);
             usingTemporarySAMOutputFile = true;
         } else {
@@ -373,10 +500,19 @@ public class MaltRun {
             usingTemporarySAMOutputFile = false;
         }
 
-        final FileWriterRanked matchesWriter = (matchesOutputFileUsed != null ? new FileWriterRanked(matchesOutputFileUsed, maltOptions.getNumberOfThreads(), 1) : null);
+        final FileWriterRanked matchesWriter;
+        if (matchesOutputFileUsed == null)
+            matchesWriter = null;
+        else if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) {
+            final boolean isFile = !matchesOutputFileUsed.equalsIgnoreCase("STDOUT");
+            final BGZFOutputStream bgzfOutputStream = new BGZFOutputStream(isFile ? new FileOutputStream(matchesOutputFileUsed) : System.out, maltOptions.getGzipThreads(), maltOptions.getGzipLevel());
+            matchesWriter = new FileWriterRanked(bgzfOutputStream, true, maltOptions.getNumberOfThreads(), 1); // must always close BGZF stream to write EOF marker
+            matchesWriter.writeFirst(BAMHelper.createBAMHeader(maltOptions.getMode(), maltOptions.getCommandLine(), referencesDB));
+        } else
+            matchesWriter = new FileWriterRanked(matchesOutputFileUsed, maltOptions.getNumberOfThreads(), 1, maltOptions.getGzipThreads(), maltOptions.getGzipLevel());
         final RMA6Writer rmaWriter = (rmaOutputFile != null ? new RMA6Writer(maltOptions, rmaOutputFile) : null);
-        final FileWriterRanked alignedReadsWriter = (alignedReadsOutputFile != null ? new FileWriterRanked(alignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1) : null);
-        final FileWriterRanked unalignedReadsWriter = (unalignedReadsOutputFile != null ? new FileWriterRanked(unalignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1) : null);
+        final FileWriterRanked alignedReadsWriter = (alignedReadsOutputFile != null ? new FileWriterRanked(alignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1, maltOptions.getGzipThreads(), maltOptions.getGzipLevel()) : null);
+        final FileWriterRanked unalignedReadsWriter = (unalignedReadsOutputFile != null ? new FileWriterRanked(unalignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1, maltOptions.getGzipThreads(), maltOptions.getGzipLevel()) : null);
 
         if (matchesWriter == null && rmaWriter == null && alignedReadsWriter == null && unalignedReadsWriter == null)
             System.err.println("Warning: no output specified");
@@ -386,24 +522,42 @@ public class MaltRun {
                 matchesWriter.writeFirst(BlastTextHelper.getBlastTextHeader(maltOptions.getMode()));
             else if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !usingTemporarySAMOutputFile) {
                 matchesWriter.writeFirst(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
+                if (!maltOptions.isSparseSAM() && maltOptions.isSamAllSQUpFront()) {
+                    final ProgressPercentage progress = new ProgressPercentage("Writing @SQ lines to SAM file: " + matchesOutputFile, referencesDB.getNumberOfSequences());
+                    for (int r = 0; r < referencesDB.getNumberOfSequences(); r++) {
+                        matchesWriter.writeFirst(getSQLine(referencesDB, r));
+                        progress.incrementProgress();
+                    }
+                    progress.close();
+                }
             }
         }
 
         final AlignmentEngine[] alignmentEngines = new AlignmentEngine[maltOptions.getNumberOfThreads()];
+        final AtomicReference<Exception> workerException = new AtomicReference<>();
 
         // launch the worker threads
         for (int thread = 0; thread < maltOptions.getNumberOfThreads(); thread++) {
             final int threadNumber = thread;
-            executor.execute(new Runnable() {
+            alignmentExecutor.execute(new Runnable() {
                 public void run() {
                     try {
                         alignmentEngines[threadNumber] = new AlignmentEngine(threadNumber, maltOptions, alignerOptions, referencesDB, tables, fastAReader,
-                                matchesWriter, rmaWriter, alignedReadsWriter, unalignedReadsWriter, geneTableAccess);
+                                matchesWriter, rmaWriter, alignedReadsWriter, unalignedReadsWriter, geneTableAccess, singlePassSAM);
                         alignmentEngines[threadNumber].runOuterLoop();
                         alignmentEngines[threadNumber].finish();
                     } catch (Exception ex) {
-                        Basic.caught(ex);
-                        System.exit(1);  // just die...
+                        if (!isServerMode) {
+                            Basic.caught(ex);
+                            System.exit(1);  // just die...
+                        }
+                        if (workerException.compareAndSet(null, ex)) { // stop all other workers, output will be incomplete
+                            fastAReader.abort();
+                            for (FileWriterRanked writer : new FileWriterRanked[]{matchesWriter, alignedReadsWriter, unalignedReadsWriter}) {
+                                if (writer != null)
+                                    writer.abort();
+                            }
+                        }
                     } finally {
                         countDownLatch.countDown();
                     }
@@ -416,84 +570,304 @@ public class MaltRun {
         } catch (InterruptedException e) {
             Basic.caught(e);
         } finally {
-            // shut down threads:
-            executor.shutdownNow();
             fastAReader.close();
         }
-        if (matchesWriter != null) {
-            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
-                matchesWriter.writeLast(BlastTextHelper.FILE_FOOTER_BLAST);
-            matchesWriter.close();
-            System.err.println("Alignments written to file: " + matchesOutputFileUsed);
-        }
-        if (rmaWriter != null) {
-            rmaWriter.close(maltOptions.getContaminantsFile());
-            System.err.println("Analysis written to file: " + rmaOutputFile);
+        if (workerException.get() != null) {
+            for (FileWriterRanked writer : new FileWriterRanked[]{matchesWriter, alignedReadsWriter, unalignedReadsWriter}) {
+                if (writer != null)
+                    writer.close();
+            }
+            if (rmaWriter != null)
+                rmaWriter.abort();
+            if (usingTemporarySAMOutputFile && new File(matchesOutputFileUsed).delete())
+                System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+            throw new IOException("Alignment failed: " + workerException.get(), workerException.get());
         }
+        final long countReads = AlignmentEngine.getTotalSequencesProcessed(alignmentEngines);
+        totalReads += countReads;
+        final long countAlignedReads = AlignmentEngine.getTotalSequencesWithAlignments(alignmentEngines);
+        totalAlignedReads += countAlignedReads;
+        final long countAlignments = AlignmentEngine.getTotalAlignments(alignmentEngines);
+        totalAlignments += countAlignments;
 
-        // if using temporary file, prepend @SQ lines, if requested, and sort by query name, if requested
-        if (usingTemporarySAMOutputFile) {
-            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(Basic.getOutputStreamPossiblyZIPorGZIP(matchesOutputFile)));
-            w.write(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
-
-            // prepend SQ lines
-            {
-                final BitSet allIds = new BitSet();
-                for (AlignmentEngine engine : alignmentEngines) {
-                    allIds.or(engine.getAlignedReferenceIds());
+        System.err.println(String.format("Num. of queries: %10d", countReads));
+        System.err.println(String.format("Aligned queries: %10d", countAlignedReads));
+        System.err.println(String.format("Num. alignments: %10d", countAlignments));
+        if (alignerOptions.isUseUngappedXDropFilter())
+            System.err.println(String.format("X-drop rejected: %10d", AlignmentEngine.getTotalUngappedRejectedSeeds(alignmentEngines)));
+
+        // close and post-process the output files in the background, so that the next input file can be aligned in the meantime:
+        return finalizationExecutor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                if (matchesWriter != null) {
+                    if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
+                        matchesWriter.writeLast(BlastTextHelper.FILE_FOOTER_BLAST);
+                    matchesWriter.close();
+                    System.err.println("Alignments written to file: " + matchesOutputFileUsed);
+                }
+                if (rmaWriter != null) {
+                    rmaWriter.close(maltOptions.getContaminantsFile());
+                    System.err.println("Analysis written to file: " + rmaOutputFile);
                 }
 
-                if (allIds.cardinality() > 0) {
-                    ProgressPercentage progress = new ProgressPercentage("Prepending @SQ lines to SAM file: " + matchesOutputFile, allIds.size());
-                    for (int r = allIds.nextSetBit(0); r != -1; r = allIds.nextSetBit(r + 1)) {
-                        w.write("@SQ\tSN:" + (Basic.toString(Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(r)))) + "\tLN:" + referencesDB.getSequenceLength(r));
-                        w.write('\n');
-                        progress.incrementProgress();
+                // if using temporary file, prepend @SQ lines, if requested, and sort by query name, if requested
+                if (usingTemporarySAMOutputFile && singlePassSAM) {
+                    final BitSet allIds = new BitSet();
+                    for (AlignmentEngine engine : alignmentEngines) {
+                        allIds.or(engine.getAlignedReferenceIds());
                     }
-                    progress.close();
+                    writeSAMHeaderAndAppendBody(maltOptions, matchesOutputFile, SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()), allIds, referencesDB, matchesOutputFileUsed);
+                    if (new File(matchesOutputFileUsed).delete())
+                        System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+                } else if (usingTemporarySAMOutputFile) {
+                    final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(ParallelGZIPOutputStream.getOutputStreamPossiblyZIPorGZIP(matchesOutputFile, maltOptions.getGzipThreads(), maltOptions.getGzipLevel())));
+                    w.write(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
+
+                    // prepend SQ lines
+                    {
+                        final BitSet allIds = new BitSet();
+                        for (AlignmentEngine engine : alignmentEngines) {
+                            allIds.or(engine.getAlignedReferenceIds());
+                        }
+
+                        if (allIds.cardinality() > 0) {
+                            ProgressPercentage progress = new ProgressPercentage("Prepending @SQ lines to SAM file: " + matchesOutputFile, allIds.size());
+                            for (int r = allIds.nextSetBit(0); r != -1; r = allIds.nextSetBit(r + 1)) {
+                                w.write(getSQLine(referencesDB, r));
+                                progress.incrementProgress();
+                            }
+                            progress.close();
+                        }
+                    }
+
+                    // copy matches
+                    {
+                        final FileLineIterator it = new FileLineIterator(matchesOutputFileUsed);
+                        final ProgressPercentage progress = new ProgressPercentage("Copying from temporary file:", it.getMaximumProgress());
+
+                        while (it.hasNext()) {
+                            w.write(it.next());
+                            w.write("\tRG:Z:1\n");
+                            progress.incrementProgress();
+                        }
+                        it.close();
+                        progress.close();
+                    }
+
+                    w.close();
+                    if (new File(matchesOutputFileUsed).delete())
+                        System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+                }
+
+                if (alignedReadsWriter != null) {
+                    // merge all thread-specific taxon profiles. This can be quite major computation...
+                    alignedReadsWriter.close();
+                    System.err.println("Aligned reads written to file: " + alignedReadsOutputFile);
+                }
+                if (unalignedReadsWriter != null) {
+                    // merge all thread-specific taxon profiles. This can be quite major computation...
+                    unalignedReadsWriter.close();
+                    System.err.println("Unaligned reads written to file: " + unalignedReadsOutputFile);
                 }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * wait for the output of an input file to be finalized
+     *
+     * @param finalization future returned by launchAlignmentThreads, or null
+     * @param inFile       the input file
+     */
+    private static void waitForFinalization(final Future<?> finalization, final String inFile) {
+        if (finalization != null) {
+            try {
+                finalization.get();
+            } catch (InterruptedException ex) {
+                Basic.caught(ex);
+            } catch (ExecutionException ex) {
+                System.err.println("Exception for file: '" + inFile + "', output incomplete (" + ex.getCause() + ")");
             }
+        }
+    }
 
-            // copy matches
-            {
-                final FileLineIterator it = new FileLineIterator(matchesOutputFileUsed);
-                final ProgressPercentage progress = new ProgressPercentage("Copying from temporary file:", it.getMaximumProgress());
+    /**
+     * run as a server: repeatedly claims job files from the spool directory and aligns the input file named in each,
+     * using the loaded index. A job file (name ending on .job) contains lines inFile=..., and optionally
+     * output=..., alignments=..., outAligned=... and outUnaligned=..., with the same meaning as the command-line options.
+     * A job is claimed by renaming it to .job.running and, once completed, renamed to .job.done or .job.failed.
+     * The server stops once a file called STOP appears in the spool directory
+     *
+     * @return number of jobs processed
+     */
+    private int runSpoolServer(final File spoolDirectory, final AlignerOptions alignerOptions, final MaltOptions maltOptions, final ReferencesDBAccess referencesDB,
+                               final ReferencesHashTableAccess[] tables, final GeneItemAccessor geneTableAccess) throws IOException {
+        final File stopFile = new File(spoolDirectory, "STOP");
+        System.err.println("Waiting for job files in spool directory: " + spoolDirectory + " (create file '" + stopFile + "' to stop)");
+
+        int countJobs = 0;
+        Future<?> previousFinalization = null; // the output of the previous job is finalized while the next job is aligned
+        File previousJobFile = null;
+        while (!stopFile.exists()) {
+            final File[] jobFiles = spoolDirectory.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".job");
+                }
+            });
+            if (jobFiles == null || jobFiles.length == 0) {
+                if (previousFinalization != null) {
+                    completeJob(previousFinalization, previousJobFile);
+                    previousFinalization = null;
+                }
+                try {
+                    Thread.sleep(1000); // sleep and then check for new jobs
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            Arrays.sort(jobFiles, new Comparator<File>() { // oldest first
+                public int compare(File a, File b) {
+                    final int result = Long.compare(a.lastModified(), b.lastModified());
+                    return (result != 0 ? result : a.getName().compareTo(b.getName()));
+                }
+            });
 
-                while (it.hasNext()) {
-                    w.write(it.next());
-                    w.write("\tRG:Z:1\n");
-                    progress.incrementProgress();
+            for (File jobFile : jobFiles) {
+                if (stopFile.exists())
+                    break;
+                final File runningFile = new File(jobFile.getPath() + ".running");
+                if (!jobFile.renameTo(runningFile))
+                    continue; // claimed by someone else
+                System.err.println("Job: " + jobFile.getName());
+                try {
+                    final Future<?> finalization = runJob(runningFile, alignerOptions, maltOptions, referencesDB, tables, geneTableAccess);
+                    if (previousFinalization != null)
+                        completeJob(previousFinalization, previousJobFile);
+                    previousFinalization = finalization;
+                    previousJobFile = jobFile;
+                } catch (Exception ex) {
+                    failJob(jobFile, ex);
                 }
-                it.close();
-                progress.close();
+                countJobs++;
             }
+        }
+        if (previousFinalization != null)
+            completeJob(previousFinalization, previousJobFile);
+        if (stopFile.exists() && stopFile.delete())
+            System.err.println("Server stopped");
+        return countJobs;
+    }
 
-            w.close();
-            if (new File(matchesOutputFileUsed).delete())
-                System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+    /**
+     * wait for the output of a job to be finalized and then mark the job as done or failed
+     *
+     * @param finalization
+     * @param jobFile      original name of the job file
+     */
+    private static void completeJob(final Future<?> finalization, final File jobFile) throws IOException {
+        try {
+            finalization.get();
+            final File runningFile = new File(jobFile.getPath() + ".running");
+            if (!runningFile.renameTo(new File(jobFile.getPath() + ".done")))
+                System.err.println("Warning: failed to rename job file: " + runningFile);
+        } catch (InterruptedException | ExecutionException ex) {
+            failJob(jobFile, ex.getCause() != null ? ex.getCause() : ex);
         }
+    }
 
-        if (alignedReadsWriter != null) {
-            // merge all thread-specific taxon profiles. This can be quite major computation...
-            alignedReadsWriter.close();
-            System.err.println("Aligned reads written to file: " + alignedReadsOutputFile);
+    /**
+     * mark a job as failed, writing the exception to the .failed file
+     *
+     * @param jobFile original name of the job file
+     * @param ex
+     */
+    private static void failJob(final File jobFile, final Throwable ex) throws IOException {
+        System.err.println("Job failed: '" + jobFile.getName() + "' (" + ex + ")");
+        try (Writer w = new FileWriter(new File(jobFile.getPath() + ".failed"))) {
+            w.write(ex + "\n");
         }
-        if (unalignedReadsWriter != null) {
-            // merge all thread-specific taxon profiles. This can be quite major computation...
-            unalignedReadsWriter.close();
-            System.err.println("Unaligned reads written to file: " + unalignedReadsOutputFile);
+        final File runningFile = new File(jobFile.getPath() + ".running");
+        if (!runningFile.delete())
+            System.err.println("Warning: failed to delete job file: " + runningFile);
+    }
+
+    /**
+     * run a single job from the spool directory
+     *
+     * @return future that completes when all output of the job has been written
+     */
+    private Future<?> runJob(final File jobFile, final AlignerOptions alignerOptions, final MaltOptions maltOptions, final ReferencesDBAccess referencesDB,
+                             final ReferencesHashTableAccess[] tables, final GeneItemAccessor geneTableAccess) throws IOException {
+        final Properties job = new Properties();
+        try (Reader r = new FileReader(jobFile)) {
+            job.load(r);
         }
+        final String inFile = job.getProperty("inFile", "").trim();
+        if (inFile.length() == 0)
+            throw new IOException("Job file does not specify inFile");
+        Utilities.checkFileExists(new File(inFile));
+
+        final List<String> inFiles = Collections.singletonList(inFile);
+        final String rmaOutputFile = getOutputFileName(0, inFiles, getJobProperty(job, "output"), ".rma6", false);
+        final String matchesOutputFile = getOutputFileName(0, inFiles, getJobProperty(job, "alignments"), maltOptions.getMatchesOutputSuffix(), maltOptions.isGzipMatches());
+        final String alignedReadsOutputFile = getOutputFileName(0, inFiles, getJobProperty(job, "outAligned"), "-aligned.fna", maltOptions.isGzipAlignedReads());
+        final String unalignedReadsOutputFile = getOutputFileName(0, inFiles, getJobProperty(job, "outUnaligned"), "-unaligned.fna", maltOptions.isGzipUnalignedReads());
+
+        return launchAlignmentThreads(alignerOptions, maltOptions, inFile, rmaOutputFile, matchesOutputFile,
+                alignedReadsOutputFile, unalignedReadsOutputFile, referencesDB, tables, geneTableAccess);
+    }
 
-        final long countReads = AlignmentEngine.getTotalSequencesProcessed(alignmentEngines);
-        totalReads += countReads;
-        final long countAlignedReads = AlignmentEngine.getTotalSequencesWithAlignments(alignmentEngines);
-        totalAlignedReads += countAlignedReads;
-        final long countAlignments = AlignmentEngine.getTotalAlignments(alignmentEngines);
-        totalAlignments += countAlignments;
+    /**
+     * gets a job property as a list of zero or one output locations
+     */
+    private static List<String> getJobProperty(final Properties job, final String key) {
+        final String value = job.getProperty(key, "").trim();
+        return (value.length() > 0 ? Collections.singletonList(value) : Collections.<String>emptyList());
+    }
 
-        System.err.println(String.format("Num. of queries: %10d", countReads));
-        System.err.println(String.format("Aligned queries: %10d", countAlignedReads));
-        System.err.println(String.format("Num. alignments: %10d", countAlignments));
+    /**
+     * get the @SQ line for a reference
+     *
+     * @return @SQ line, including new line
+     */
+    private static String getSQLine(final ReferencesDBAccess referencesDB, final int refIndex) throws IOException {
+        return "@SQ\tSN:" + (Basic.toString(Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(refIndex)))) + "\tLN:" + referencesDB.getSequenceLength(refIndex) + "\n";
+    }
+
+    /**
+     * writes the SAM header and the @SQ lines for all aligned references to the output file and then appends the body file,
+     * whose lines are already in final form, as is. If the output file is gzipped, then the header is written as a separate gzip member,
+     * which is then followed by the gzip member(s) of the body file
+     */
+    private static void writeSAMHeaderAndAppendBody(final MaltOptions maltOptions, final String outputFile, final String header, final BitSet ids, final ReferencesDBAccess referencesDB, final String bodyFile) throws IOException {
+        try (FileOutputStream outs = new FileOutputStream(outputFile)) {
+            final ParallelGZIPOutputStream gzipOutputStream = (outputFile.toLowerCase().endsWith(".gz") ? new ParallelGZIPOutputStream(outs, maltOptions.getGzipThreads(), maltOptions.getGzipLevel()) : null);
+            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(gzipOutputStream != null ? gzipOutputStream : outs));
+            w.write(header);
+            if (ids.cardinality() > 0) {
+                final ProgressPercentage progress = new ProgressPercentage("Writing @SQ lines to SAM file: " + outputFile, ids.cardinality());
+                for (int r = ids.nextSetBit(0); r != -1; r = ids.nextSetBit(r + 1)) {
+                    w.write(getSQLine(referencesDB, r));
+                    progress.incrementProgress();
+                }
+                progress.close();
+            }
+            w.flush();
+            if (gzipOutputStream != null)
+                gzipOutputStream.finish(); // completes the gzip member, doesn't close the file
+
+            // append body:
+            try (FileChannel in = new FileInputStream(bodyFile).getChannel()) {
+                final FileChannel out = outs.getChannel();
+                final long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        }
     }
 
     /**
@@ -53,6 +53,10 @@ public class AlignerOptions {
 
     private boolean samSoftClipping = false;
 
+    private boolean useScoreOnlyKernel = true;
+
+    private boolean useUngappedXDropFilter = false;
+
 
     public AlignmentMode getAlignmentType() {
         return alignmentType;
@@ -214,4 +218,20 @@ public class AlignerOptions {
     public void setSamSoftClipping(boolean samSoftClipping) {
         this.samSoftClipping = samSoftClipping;
     }
+
+    public boolean isUseScoreOnlyKernel() {
+        return useScoreOnlyKernel;
+    }
+
+    public void setUseScoreOnlyKernel(boolean useScoreOnlyKernel) {
+        this.useScoreOnlyKernel = useScoreOnlyKernel;
+    }
+
+    public boolean isUseUngappedXDropFilter() {
+        return useUngappedXDropFilter;
+    }
+
+    public void setUseUngappedXDropFilter(boolean useUngappedXDropFilter) {
+        this.useUngappedXDropFilter = useUngappedXDropFilter;
+    }
 }
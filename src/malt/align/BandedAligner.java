@@ -24,9 +24,12 @@ import jloda.util.BlastMode;
 import jloda.util.ReusableByteBuffer;
 import malt.DataForInnerLoop;
 import malt.data.DNA5;
+import malt.io.BAMHelper;
 import malt.io.SAMHelper;
 import malt.util.Utilities;
 
+import java.util.Arrays;
+
 /**
  * banded DNA aligner. Does both local and semiGlobal alignment
  * Daniel Huson, 8.2014
@@ -97,6 +100,7 @@ public class BandedAligner {
     private byte[] referenceTrack = new byte[1000];
 
     private ReusableByteBuffer alignmentBuffer = new ReusableByteBuffer(10000);
+    private BAMHelper.RecordBuffer bamRecordBuffer; // allocated when first needed
 
     private int queryPos;
     private int refPos;
@@ -112,6 +116,16 @@ public class BandedAligner {
     private final int lastRowToFill;
     private final int middleRow;
 
+    // score-only kernel:
+    private final boolean useScoreOnlyKernel;
+    private boolean matricesFilled; // false, if score was computed by score-only kernel and matrices have not yet been filled
+    private final int[] previousM;
+    private final int[] previousIRef;
+    private final int[] previousIQuery;
+    private final int[] currentM;
+    private final int[] currentIRef;
+    private final int[] currentIQuery;
+
     /**
      * constructor
      *
@@ -145,6 +159,14 @@ public class BandedAligner {
         // todo: only use one traceback matrix
 
         samSoftClipping = alignerOptions.isSamSoftClipping();
+
+        useScoreOnlyKernel = alignerOptions.isUseScoreOnlyKernel();
+        previousM = new int[rows];
+        previousIRef = new int[rows];
+        previousIQuery = new int[rows];
+        currentM = new int[rows];
+        currentIRef = new int[rows];
+        currentIQuery = new int[rows];
     }
 
     /**
@@ -169,10 +191,232 @@ public class BandedAligner {
 
         startQuery = startReference = endQuery = endReference = -1;
 
-        if (doSemiGlobal)
-            computeSemiGlobalAlignment();
-        else
-            computeLocalAlignment();
+        if (useScoreOnlyKernel) { // first phase: compute the score only, the matrices are filled when a traceback is requested
+            if (doSemiGlobal)
+                computeSemiGlobalScore();
+            else
+                computeLocalScore();
+            matricesFilled = false;
+        } else {
+            if (doSemiGlobal)
+                computeSemiGlobalAlignment();
+            else
+                computeLocalAlignment();
+            matricesFilled = true;
+        }
+    }
+
+    /**
+     * Computes the same raw score as computeLocalAlignment(), but only keeps two columns of each matrix and doesn't record traceback.
+     * For each column, the match and query-insertion scores only depend on the previous column and are computed in a loop without
+     * dependencies between rows. Only the reference-insertion scores require a second pass along the column.
+     */
+    private void computeLocalScore() {
+        alignment = null; // will need to call alignmentByTraceBack to compute this
+
+        refOffset = refPos - queryPos - band - 2; // need this to compute index in reference sequence
+
+        final int firstSeedCol = queryPos + 1; // +1 because col=pos+1
+        final int lastSeedCol = queryPos + seedLength; // +1 because col=pos+1, but then -1 because want to be last in seed (not first after seed)
+
+        // ------- compute score that comes from seed (without first and last member)
+        rawScore = 0;
+        {
+            for (int col = firstSeedCol + 1; col < lastSeedCol; col++) {
+                final int refIndex = middleRow + col + refOffset;
+                rawScore += scoringMatrix[query[col - 1]][reference[refIndex]];
+            }
+            if (rawScore <= 0) {
+                rawScore = 0;
+                return;
+            }
+        }
+
+        // ------- from 0 to first column of seed:
+        {
+            final int firstCol = Math.max(1, -refOffset - 2 * band - 1); // the column for which refIndex(firstCol,bottom-to-last row)==0
+            clearColumns();
+            for (int col = firstCol; col <= firstSeedCol; col++) {
+                // match and insertion in query, depend on previous column only:
+                for (int row = 1; row <= lastRowToFill; row++) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength) {
+                        final int s = scoringMatrix[query[col - 1]][reference[refIndex]];
+                        currentM[row] = Math.max(0, Math.max(previousM[row], Math.max(previousIRef[row], previousIQuery[row])) + s);
+                        currentIQuery[row] = Math.max(0, Math.max(previousM[row + 1] - gapOpenPenalty, previousIQuery[row + 1] - gapExtensionPenalty));
+                    } else
+                        currentM[row] = currentIQuery[row] = 0;
+                }
+                // insertion in reference, depends on previous row:
+                for (int row = 1; row <= lastRowToFill; row++) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength)
+                        currentIRef[row] = Math.max(0, Math.max(currentM[row - 1] - gapOpenPenalty, currentIRef[row - 1] - gapExtensionPenalty));
+                    else
+                        currentIRef[row] = 0;
+                }
+                swapColumns();
+            }
+            rawScore += Math.max(Math.max(previousIQuery[middleRow], previousIRef[middleRow]), previousM[middleRow]);
+        }
+
+        // ------- from end of query to last column of seed:
+        {
+            final int lastCol = Math.min(queryLength + 1, queryPos + referenceLength - refPos + 1); // last column, fill upto lastCol-1
+            clearColumns();
+            for (int col = lastCol - 1; col >= lastSeedCol; col--) {
+                // match and insertion in query, depend on previous column only:
+                for (int row = lastRowToFill; row >= 1; row--) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength) {
+                        final int s = scoringMatrix[query[col - 1]][reference[refIndex]]; // pos in query=col-1
+                        currentM[row] = Math.max(0, Math.max(previousM[row], Math.max(previousIRef[row], previousIQuery[row])) + s);
+                        currentIQuery[row] = Math.max(0, Math.max(previousM[row - 1] - gapOpenPenalty, previousIQuery[row - 1] - gapExtensionPenalty));
+                    } else
+                        currentM[row] = currentIQuery[row] = 0;
+                }
+                // insertion in reference, depends on next row:
+                for (int row = lastRowToFill; row >= 1; row--) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength)
+                        currentIRef[row] = Math.max(0, Math.max(currentM[row + 1] - gapOpenPenalty, currentIRef[row + 1] - gapExtensionPenalty));
+                    else
+                        currentIRef[row] = 0;
+                }
+                swapColumns();
+            }
+            rawScore += Math.max(Math.max(previousIQuery[middleRow], previousIRef[middleRow]), previousM[middleRow]);
+        }
+    }
+
+    /**
+     * Computes the same raw score as computeSemiGlobalAlignment(), but only keeps two columns of each matrix and doesn't record traceback.
+     */
+    private void computeSemiGlobalScore() {
+        alignment = null; // will need to call alignmentByTraceBack to compute this
+
+        refOffset = refPos - queryPos - band - 2; // need this to compute index in reference sequence
+
+        final int firstSeedCol = queryPos + 1; // +1 because col=pos+1
+        final int lastSeedCol = queryPos + seedLength; // +1 because col=pos+1, but then -1 because want to be last in seed (not first after seed)
+
+        // ------- compute score that comes from seed (without first and last member)
+        rawScore = 0;
+        {
+            for (int col = firstSeedCol + 1; col < lastSeedCol; col++) {
+                final int refIndex = middleRow + col + refOffset;
+                rawScore += scoringMatrix[query[col - 1]][reference[refIndex]];
+            }
+            if (rawScore <= 0) {
+                rawScore = 0;
+                return;
+            }
+        }
+
+        // ------- from 0 to first column of seed:
+        {
+            final int firstCol = Math.max(1, -refOffset - 2 * band - 1); // the column for which refIndex(firstCol,bottom-to-last row)==0
+            initializeSemiGlobalColumns();
+            if (firstCol > 1)
+                previousM[rows - 2] = previousIRef[rows - 2] = previousIQuery[rows - 2] = 0;
+
+            for (int col = firstCol; col <= firstSeedCol; col++) {
+                // match and insertion in query, depend on previous column only:
+                for (int row = 1; row <= lastRowToFill; row++) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength) {
+                        final int s = scoringMatrix[query[col - 1]][reference[refIndex]];
+                        currentM[row] = Math.max(previousM[row], Math.max(previousIRef[row], previousIQuery[row])) + s;
+                        currentIQuery[row] = Math.max(previousM[row + 1] - gapOpenPenalty, previousIQuery[row + 1] - gapExtensionPenalty);
+                    } else if (refIndex == -1) { // in column before reference starts
+                        currentM[row] = 0;
+                        currentIQuery[row] = -gapOpenPenalty;
+                    } else
+                        currentM[row] = currentIQuery[row] = MINUS_INFINITY; // never used
+                }
+                // insertion in reference, depends on previous row:
+                for (int row = 1; row <= lastRowToFill; row++) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength)
+                        currentIRef[row] = Math.max(currentM[row - 1] - gapOpenPenalty, currentIRef[row - 1] - gapExtensionPenalty);
+                    else if (refIndex == -1)
+                        currentIRef[row] = -gapOpenPenalty;
+                    else
+                        currentIRef[row] = MINUS_INFINITY; // never used
+                }
+                swapColumns();
+            }
+            rawScore += Math.max(Math.max(previousIQuery[middleRow], previousIRef[middleRow]), previousM[middleRow]);
+        }
+
+        // ------- from end of query to last column of seed:
+        {
+            final int lastCol = Math.min(queryLength + 1, queryPos + referenceLength - refPos + 1); // last column, fill upto lastCol-1
+            initializeSemiGlobalColumns();
+
+            for (int col = lastCol - 1; col >= lastSeedCol; col--) {
+                // match and insertion in query, depend on previous column only:
+                for (int row = lastRowToFill; row >= 1; row--) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength) {
+                        final int s = scoringMatrix[query[col - 1]][reference[refIndex]]; // pos in query=col-1
+                        currentM[row] = Math.max(previousM[row], Math.max(previousIRef[row], previousIQuery[row])) + s;
+                        currentIQuery[row] = Math.max(previousM[row - 1] - gapOpenPenalty, previousIQuery[row - 1] - gapExtensionPenalty);
+                    } else if (refIndex >= referenceLength) { // out of range of the alignment
+                        currentM[row] = currentIQuery[row] = -gapOpenPenalty;
+                    } else
+                        currentM[row] = currentIQuery[row] = MINUS_INFINITY; // never used
+                }
+                // insertion in reference, depends on next row:
+                for (int row = lastRowToFill; row >= 1; row--) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength)
+                        currentIRef[row] = Math.max(currentM[row + 1] - gapOpenPenalty, currentIRef[row + 1] - gapExtensionPenalty);
+                    else if (refIndex >= referenceLength)
+                        currentIRef[row] = -gapOpenPenalty;
+                    else
+                        currentIRef[row] = MINUS_INFINITY; // never used
+                }
+                swapColumns();
+            }
+            rawScore += Math.max(Math.max(previousIQuery[middleRow], previousIRef[middleRow]), previousM[middleRow]);
+        }
+    }
+
+    /**
+     * initialize the two columns used by the score-only kernel for semi-global alignment: the first and last rows must never be used,
+     * the previous column is set up as the column before the query or after its end
+     */
+    private void initializeSemiGlobalColumns() {
+        for (int row = 1; row < rows - 1; row++) {
+            previousM[row] = 0;
+            previousIRef[row] = previousIQuery[row] = -gapOpenPenalty;
+        }
+        previousM[0] = previousIRef[0] = previousIQuery[0] = MINUS_INFINITY;
+        previousM[rows - 1] = previousIRef[rows - 1] = previousIQuery[rows - 1] = MINUS_INFINITY;
+        currentM[0] = currentIRef[0] = currentIQuery[0] = MINUS_INFINITY;
+        currentM[rows - 1] = currentIRef[rows - 1] = currentIQuery[rows - 1] = MINUS_INFINITY;
+    }
+
+    /**
+     * set the two columns used by the score-only kernel to zero
+     */
+    private void clearColumns() {
+        Arrays.fill(previousM, 0);
+        Arrays.fill(previousIRef, 0);
+        Arrays.fill(previousIQuery, 0);
+        Arrays.fill(currentM, 0);
+        Arrays.fill(currentIRef, 0);
+        Arrays.fill(currentIQuery, 0);
+    }
+
+    /**
+     * the current column becomes the previous column
+     */
+    private void swapColumns() {
+        System.arraycopy(currentM, 0, previousM, 0, rows);
+        System.arraycopy(currentIRef, 0, previousIRef, 0, rows);
+        System.arraycopy(currentIQuery, 0, previousIQuery, 0, rows);
     }
 
     /**
@@ -750,6 +994,14 @@ public class BandedAligner {
             return;
         }
 
+        if (!matricesFilled) { // second phase: score was computed by score-only kernel, need to fill matrices for traceback
+            if (doSemiGlobal)
+                computeSemiGlobalAlignment();
+            else
+                computeLocalAlignment();
+            matricesFilled = true;
+        }
+
         gaps = 0;
         gapOpens = 0;
         identities = 0;
@@ -1366,6 +1618,28 @@ public class BandedAligner {
                 outputStartReference, outputEndReference, alignment[2], referenceLength, bitScore, rawScore, expected, 100 * identities / alignmentLength, frame, data.getQualityValues(), samSoftClipping).getBytes();
     }
 
+    /**
+     * get alignment as a binary BAM record without read name. BlastN only. Unlike getAlignmentSAM, this does not modify the alignment
+     *
+     * @param querySequence
+     * @param refIndex      the reference index, used as BAM reference id
+     * @param frameRank
+     * @return BAM record
+     */
+    public byte[] getAlignmentBAM(final DataForInnerLoop data, final byte[] querySequence, final int refIndex, final int frameRank) {
+        if (alignment == null)
+            computeAlignmentByTraceBack();
+
+        if (bamRecordBuffer == null)
+            bamRecordBuffer = new BAMHelper.RecordBuffer(10000);
+
+        final boolean queryIsReverseComplemented = isDNAAlignment && data.getFrameForFrameRank(frameRank) < 0;
+
+        BAMHelper.writeBAMRecord(bamRecordBuffer, querySequence, startQuery, endQuery, queryLength, alignment[0], refIndex, startReference, alignment[2], referenceLength,
+                bitScore, rawScore, expected, 100 * identities / alignmentLength, queryIsReverseComplemented, data.getQualityValues(), samSoftClipping);
+        return bamRecordBuffer.makeCopy();
+    }
+
     /**
      * maps a bit score to a raw score
      *
@@ -1406,4 +1680,54 @@ public class BandedAligner {
         }
         return false;
     }
+
+    /**
+     * computes the score of an ungapped extension of a seed match in both directions. Extension in a given direction
+     * stops as soon as the running score drops more than xDrop below the best score seen so far
+     *
+     * @param query
+     * @param reference
+     * @param queryPos
+     * @param refPos
+     * @param seedLength
+     * @param xDrop
+     * @return best ungapped raw score
+     */
+    public int computeUngappedXDropScore(final byte[] query, final int queryLength, final byte[] reference, final int referenceLength, final int queryPos, final int refPos, final int seedLength, final int xDrop) {
+        // score of seed:
+        int score = 0;
+        final int length = Math.min(seedLength, Math.min(queryLength - queryPos, referenceLength - refPos));
+        for (int i = 0; i < length; i++) {
+            score += scoringMatrix[query[queryPos + i]][reference[refPos + i]];
+        }
+
+        // extend to the right:
+        int bestRight = 0;
+        {
+            int running = 0;
+            final int steps = Math.min(queryLength - queryPos, referenceLength - refPos);
+            for (int i = length; i < steps; i++) {
+                running += scoringMatrix[query[queryPos + i]][reference[refPos + i]];
+                if (running > bestRight)
+                    bestRight = running;
+                else if (bestRight - running > xDrop)
+                    break;
+            }
+        }
+
+        // extend to the left:
+        int bestLeft = 0;
+        {
+            int running = 0;
+            final int steps = Math.min(queryPos, refPos);
+            for (int i = 1; i <= steps; i++) {
+                running += scoringMatrix[query[queryPos - i]][reference[refPos - i]];
+                if (running > bestLeft)
+                    bestLeft = running;
+                else if (bestLeft - running > xDrop)
+                    break;
+            }
+        }
+        return score + bestLeft + bestRight;
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.data;
+
+import megan.io.IByteGetter;
+import megan.io.OutputWriter;
+
+import java.io.IOException;
+
+/**
+ * stores DNA sequences using two bits per letter. Letters other than A, C, G and T are kept in an exception list.
+ * Layout: int length, int number of exceptions, exception positions (ints), exception letters (bytes), packed letters (four per byte)
+ */
+public class PackedDNA {
+    private final static byte[] code2letter = {'A', 'C', 'G', 'T'};
+    private final static byte[] letter2code = new byte[256];
+
+    static {
+        for (int i = 0; i < letter2code.length; i++)
+            letter2code[i] = -1;
+        letter2code['A'] = 0;
+        letter2code['C'] = 1;
+        letter2code['G'] = 2;
+        letter2code['T'] = 3;
+    }
+
+    /**
+     * write a sequence in packed format
+     *
+     * @param sequence normalized DNA sequence
+     * @param outs
+     * @return number of bytes written
+     */
+    public static long write(byte[] sequence, OutputWriter outs) throws IOException {
+        int numberOfExceptions = 0;
+        for (byte letter : sequence) {
+            if (letter2code[letter & 0xFF] == -1)
+                numberOfExceptions++;
+        }
+        final byte[] exceptionLetters = new byte[numberOfExceptions];
+        final byte[] packed = new byte[getPackedLength(sequence.length)];
+
+        outs.writeInt(sequence.length);
+        outs.writeInt(numberOfExceptions);
+        int e = 0;
+        for (int i = 0; i < sequence.length; i++) {
+            int code = letter2code[sequence[i] & 0xFF];
+            if (code == -1) {
+                outs.writeInt(i);
+                exceptionLetters[e++] = sequence[i];
+                code = 0;
+            }
+            packed[i >>> 2] |= code << ((i & 3) << 1);
+        }
+        outs.write(exceptionLetters);
+        outs.write(packed);
+        return getSizeInBytes(sequence.length, numberOfExceptions);
+    }
+
+    /**
+     * read a packed sequence
+     *
+     * @param refDB
+     * @param location location of sequence length
+     * @return sequence
+     */
+    public static byte[] read(IByteGetter refDB, long location) throws IOException {
+        final int length = refDB.getInt(location);
+        final int numberOfExceptions = refDB.getInt(location + 4);
+        location += 8;
+        final long exceptionPositions = location;
+        location += 4L * numberOfExceptions;
+        final byte[] exceptionLetters = new byte[numberOfExceptions];
+        refDB.get(location, exceptionLetters, 0, numberOfExceptions);
+        location += numberOfExceptions;
+        final byte[] packed = new byte[getPackedLength(length)];
+        refDB.get(location, packed, 0, packed.length);
+
+        final byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = code2letter[(packed[i >>> 2] >>> ((i & 3) << 1)) & 3];
+        }
+        for (int e = 0; e < numberOfExceptions; e++) {
+            sequence[refDB.getInt(exceptionPositions + 4L * e)] = exceptionLetters[e];
+        }
+        return sequence;
+    }
+
+    /**
+     * get the number of bytes used to store the packed sequence at the given location
+     *
+     * @param refDB
+     * @param location location of sequence length
+     * @return size in bytes
+     */
+    public static long getSizeInBytes(IByteGetter refDB, long location) throws IOException {
+        return getSizeInBytes(refDB.getInt(location), refDB.getInt(location + 4));
+    }
+
+    /**
+     * get the number of bytes used to store a packed sequence
+     *
+     * @param length
+     * @param numberOfExceptions
+     * @return size in bytes
+     */
+    private static long getSizeInBytes(int length, int numberOfExceptions) {
+        return 8 + 5L * numberOfExceptions + getPackedLength(length);
+    }
+
+    /**
+     * number of bytes used to hold the two-bit codes
+     *
+     * @param length
+     * @return packed length
+     */
+    private static int getPackedLength(int length) {
+        return (length + 3) >>> 2;
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.data;
+
+import jloda.thirdparty.MurmurHash3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * on-disk cache of the matches computed for a query sequence, shared by all runs that use the same index and alignment parameters.
+ * The file is named after a fingerprint of the index and parameters. Records found in the file when it is opened are accessed
+ * via memory mapping, records added by the current run are appended to the file and become available to later runs.
+ * Only one run at a time appends to a given file, other runs open it read-only
+ * <p>
+ * File format: magic, fingerprint, then records of the form:
+ * length, hash, outputs, sequence length, sequence, number of matches, and for each match: bit score, expected, percent identity,
+ * reference id, start, end, text and rma6 text. Outputs is a bit mask of the outputs that the texts were computed for, it is part of the key,
+ * so that a run that writes more outputs does not use records that lack the required texts
+ */
+public class PersistentMatchesCache implements Closeable {
+    private static final byte[] MAGIC = "MALTPMC2".getBytes(StandardCharsets.US_ASCII);
+    private static final long SEGMENT_SIZE = 1L << 30; // size of mapped segments
+    private static final int MAX_RECORD_SIZE = 1 << 26; // segments overlap by this amount, so each record lies within one segment
+    private static final int NULL_TEXT = -1;
+    private static final int SAME_AS_TEXT = -2;
+
+    public static final int OUTPUT_MATCHES = 1; // bits of outputs mask
+    public static final int OUTPUT_RMA = 2;
+
+    private final File file;
+    private final MappedByteBuffer[] segments;
+    private final long[] indexKeys; // open addressing hash table from hash to record offset. Key 0 means empty
+    private final long[] indexOffsets;
+    private final int indexMask;
+    private final int numberOfRecordsLoaded;
+
+    private final RandomAccessFile raf;
+    private final FileLock writeLock; // null, if another run is writing the file
+    private final DataOutputStream outs;
+    private final LongHashSet hashesWritten = new LongHashSet(); // guarded by this
+    private long countWritten = 0; // guarded by this
+    private long bytesWritten = 0; // guarded by this
+
+    private final LongAdder countHits = new LongAdder();
+    private final LongAdder countMisses = new LongAdder();
+
+    /**
+     * opens or creates the cache file for the given fingerprint in the given directory
+     *
+     * @param directory
+     * @param fingerprint description of the index and all parameters that influence the computed matches
+     */
+    public PersistentMatchesCache(File directory, String fingerprint) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create directory: " + directory);
+        this.file = new File(directory, "matches-" + sha256(fingerprint) + ".cache");
+        final byte[] header = makeHeader(fingerprint);
+
+        raf = new RandomAccessFile(file, "rw");
+        final FileChannel channel = raf.getChannel();
+        writeLock = channel.tryLock();
+
+        // determine the valid part of an existing file and build the index:
+        long validEnd = 0;
+        final LongArrayList keys = new LongArrayList();
+        final LongArrayList offsets = new LongArrayList();
+        if (raf.length() >= header.length && hasHeader(header)) {
+            validEnd = header.length;
+            try (DataInputStream ins = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+                ins.skipBytes(header.length);
+                final long length = raf.length();
+                while (validEnd + 12 <= length) {
+                    final int recordLength = ins.readInt();
+                    if (recordLength < 8 || recordLength > MAX_RECORD_SIZE || validEnd + 4 + recordLength > length)
+                        break; // incomplete or corrupt record, e.g. previous run was killed
+                    final long hash = ins.readLong();
+                    if (skipFully(ins, recordLength - 8) < recordLength - 8)
+                        break;
+                    keys.add(hash);
+                    offsets.add(validEnd);
+                    validEnd += 4 + recordLength;
+                }
+            }
+        }
+
+        if (writeLock != null) {
+            if (validEnd == 0) {  // new file, or not a valid cache file
+                raf.setLength(0);
+                raf.write(header);
+                validEnd = header.length;
+            } else if (raf.length() > validEnd) {
+                System.err.println("Persistent cache: discarding incomplete data at end of file: " + file);
+                raf.setLength(validEnd);
+            }
+        } else
+            System.err.println("Persistent cache: file in use by another run, new matches won't be saved: " + file);
+
+        // map the valid part of the file:
+        final int numberOfSegments = (int) ((validEnd + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[numberOfSegments];
+        for (int s = 0; s < numberOfSegments; s++) {
+            final long start = s * SEGMENT_SIZE;
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE + MAX_RECORD_SIZE + 4, validEnd - start));
+        }
+
+        // build the index:
+        numberOfRecordsLoaded = keys.size();
+        int size = 1024;
+        while (size < 2 * numberOfRecordsLoaded)
+            size *= 2;
+        indexKeys = new long[size];
+        indexOffsets = new long[size];
+        indexMask = size - 1;
+        for (int i = 0; i < numberOfRecordsLoaded; i++) {
+            int slot = (int) keys.get(i) & indexMask;
+            while (indexKeys[slot] != 0 && indexKeys[slot] != keys.get(i))
+                slot = (slot + 1) & indexMask;
+            if (indexKeys[slot] == 0) { // keep the first record for a given hash
+                indexKeys[slot] = keys.get(i);
+                indexOffsets[slot] = offsets.get(i);
+            }
+        }
+
+        if (writeLock != null) {
+            channel.position(validEnd);
+            outs = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20));
+        } else
+            outs = null;
+
+        System.err.println(String.format("Persistent cache: %s, records: %,d, size: %,d bytes", file, numberOfRecordsLoaded, validEnd));
+    }
+
+    /**
+     * get the matches saved for a sequence by a previous run. Thread safe
+     *
+     * @param sequence
+     * @param sequenceLength
+     * @param outputs        bit mask of active outputs, see OUTPUT_MATCHES and OUTPUT_RMA
+     * @return matches (possibly of length 0) or null, if not cached
+     */
+    public ReadMatch[] get(byte[] sequence, int sequenceLength, int outputs) {
+        final long hash = getHash(sequence, sequenceLength, outputs);
+        int slot = (int) hash & indexMask;
+        while (indexKeys[slot] != 0) {
+            if (indexKeys[slot] == hash) {
+                final ReadMatch[] matches = readMatches(indexOffsets[slot], sequence, sequenceLength, outputs);
+                if (matches != null) {
+                    countHits.increment();
+                    return matches;
+                }
+                break;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        countMisses.increment();
+        return null;
+    }
+
+    /**
+     * save the matches for a sequence, if not already present. Thread safe
+     *
+     * @param sequence
+     * @param sequenceLength
+     * @param matches
+     * @param numberOfMatches
+     * @param outputs         bit mask of active outputs, see OUTPUT_MATCHES and OUTPUT_RMA
+     */
+    public void put(byte[] sequence, int sequenceLength, ReadMatch[] matches, int numberOfMatches, int outputs) throws IOException {
+        if (outs == null)
+            return;
+        final long hash = getHash(sequence, sequenceLength, outputs);
+        if (containsHash(hash))
+            return;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeLong(hash);
+        record.writeInt(outputs);
+        record.writeInt(sequenceLength);
+        record.write(sequence, 0, sequenceLength);
+        record.writeInt(numberOfMatches);
+        for (int i = 0; i < numberOfMatches; i++) {
+            final ReadMatch match = matches[i];
+            record.writeFloat(match.getBitScore());
+            record.writeFloat(match.getExpected());
+            record.writeInt(match.getPercentIdentity());
+            record.writeInt(match.getReferenceId());
+            record.writeInt(match.getStartRef());
+            record.writeInt(match.getEndRef());
+            writeText(record, match.getText());
+            if (match.getRMA6Text() != null && match.getRMA6Text() == match.getText())
+                record.writeInt(SAME_AS_TEXT);
+            else
+                writeText(record, match.getRMA6Text());
+        }
+        record.flush();
+        if (bytes.size() > MAX_RECORD_SIZE)
+            return;
+
+        synchronized (this) {
+            if (hashesWritten.add(hash)) {
+                outs.writeInt(bytes.size());
+                bytes.writeTo(outs);
+                countWritten++;
+                bytesWritten += 4 + bytes.size();
+            }
+        }
+    }
+
+    /**
+     * writes all saved matches to disk and closes the file
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            try {
+                if (outs != null)
+                    outs.flush();
+                if (writeLock != null)
+                    writeLock.release();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * report stats on usage
+     */
+    public void reportStats() {
+        synchronized (this) {
+            System.err.println(String.format("Persistent cache: hits=%d, misses=%d, saved=%d (%,d bytes)", countHits.sum(), countMisses.sum(), countWritten, bytesWritten));
+        }
+    }
+
+    public long getCountHits() {
+        return countHits.sum();
+    }
+
+    public long getCountMisses() {
+        return countMisses.sum();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * was the given hash found in the file or saved by this run?
+     *
+     * @param hash
+     * @return true, if present
+     */
+    private boolean containsHash(long hash) {
+        int slot = (int) hash & indexMask;
+        while (indexKeys[slot] != 0) {
+            if (indexKeys[slot] == hash)
+                return true;
+            slot = (slot + 1) & indexMask;
+        }
+        synchronized (this) {
+            return hashesWritten.contains(hash);
+        }
+    }
+
+    /**
+     * read the matches of the record at the given offset, if it belongs to the given sequence and outputs
+     *
+     * @param offset
+     * @param sequence
+     * @param sequenceLength
+     * @param outputs
+     * @return matches or null, if record is for a different sequence or outputs
+     */
+    private ReadMatch[] readMatches(long offset, byte[] sequence, int sequenceLength, int outputs) {
+        final int s = (int) (offset / SEGMENT_SIZE);
+        final ByteBuffer buffer = segments[s].duplicate(); // each thread uses its own position
+        buffer.position((int) (offset - s * SEGMENT_SIZE) + 12); // skip length and hash
+        if (buffer.getInt() != outputs || buffer.getInt() != sequenceLength)
+            return null;
+        final int start = buffer.position();
+        for (int i = 0; i < sequenceLength; i++) {
+            if (buffer.get(start + i) != sequence[i])
+                return null;
+        }
+        buffer.position(start + sequenceLength);
+        final ReadMatch[] matches = new ReadMatch[buffer.getInt()];
+        for (int i = 0; i < matches.length; i++) {
+            final float bitScore = buffer.getFloat();
+            final float expected = buffer.getFloat();
+            final int percentIdentity = buffer.getInt();
+            final int referenceId = buffer.getInt();
+            final int startRef = buffer.getInt();
+            final int endRef = buffer.getInt();
+            final byte[] text = readText(buffer, buffer.getInt());
+            final int rma6Length = buffer.getInt();
+            final byte[] rma6Text = (rma6Length == SAME_AS_TEXT ? text : readText(buffer, rma6Length));
+            matches[i] = new ReadMatch(bitScore, expected, percentIdentity, referenceId, text, rma6Text, startRef, endRef);
+        }
+        return matches;
+    }
+
+    /**
+     * write a text preceded by its length
+     */
+    private static void writeText(DataOutputStream outs, byte[] text) throws IOException {
+        if (text == null)
+            outs.writeInt(NULL_TEXT);
+        else {
+            outs.writeInt(text.length);
+            outs.write(text);
+        }
+    }
+
+    /**
+     * read a text of the given length
+     */
+    private static byte[] readText(ByteBuffer buffer, int length) {
+        if (length == NULL_TEXT)
+            return null;
+        final byte[] text = new byte[length];
+        buffer.get(text);
+        return text;
+    }
+
+    /**
+     * compute a 64-bit hash value for a sequence and outputs mask. Never 0
+     *
+     * @param sequence
+     * @param length
+     * @param outputs
+     * @return hash value
+     */
+    private static long getHash(byte[] sequence, int length, int outputs) {
+        final long hash = (((long) MurmurHash3.murmurhash3x8632(sequence, 0, length, 666 + outputs) << 32) | (MurmurHash3.murmurhash3x8632(sequence, 0, length, 777 + outputs) & 0xffffffffL));
+        return (hash == 0 ? 1 : hash);
+    }
+
+    /**
+     * does the file start with the given header?
+     */
+    private boolean hasHeader(byte[] header) throws IOException {
+        final byte[] bytes = new byte[header.length];
+        raf.seek(0);
+        raf.readFully(bytes);
+        for (int i = 0; i < header.length; i++) {
+            if (bytes[i] != header[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * header consists of magic, and the fingerprint
+     */
+    private static byte[] makeHeader(String fingerprint) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream outs = new DataOutputStream(bytes);
+        outs.write(MAGIC);
+        outs.writeUTF(fingerprint);
+        outs.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * skip the given number of bytes
+     *
+     * @return number of bytes skipped, less than count only at end of file
+     */
+    private static long skipFully(InputStream ins, long count) throws IOException {
+        long total = 0;
+        while (total < count) {
+            final long skipped = ins.skip(count - total);
+            if (skipped <= 0) {
+                if (ins.read() == -1)
+                    break;
+                total++;
+            } else
+                total += skipped;
+        }
+        return total;
+    }
+
+    /**
+     * SHA-256 of a string, in hex
+     */
+    private static String sha256(String string) throws IOException {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(string.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder buf = new StringBuilder();
+            for (byte b : digest)
+                buf.append(String.format("%02x", b & 0xff));
+            return buf.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * minimal growable list of longs
+     */
+    private static class LongArrayList {
+        private long[] array = new long[1024];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == array.length) {
+                final long[] tmp = new long[2 * size];
+                System.arraycopy(array, 0, tmp, 0, size);
+                array = tmp;
+            }
+            array[size++] = value;
+        }
+
+        long get(int i) {
+            return array[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * minimal growable set of non-zero longs, using open addressing, so that no objects are allocated per element
+     */
+    private static class LongHashSet {
+        private long[] keys = new long[1024]; // 0 means empty
+        private int mask = keys.length - 1;
+        private int size = 0;
+
+        /**
+         * add a value
+         *
+         * @param value must not be 0
+         * @return true, if value was not already present
+         */
+        boolean add(long value) {
+            int slot = (int) value & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == value)
+                    return false;
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = value;
+            if (2 * ++size > keys.length)
+                grow();
+            return true;
+        }
+
+        boolean contains(long value) {
+            int slot = (int) value & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == value)
+                    return true;
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * double the size of the table
+         */
+        private void grow() {
+            final long[] oldKeys = keys;
+            keys = new long[2 * oldKeys.length];
+            mask = keys.length - 1;
+            for (long value : oldKeys) {
+                if (value != 0) {
+                    int slot = (int) value & mask;
+                    while (keys[slot] != 0)
+                        slot = (slot + 1) & mask;
+                    keys[slot] = value;
+                }
+            }
+        }
+    }
+}
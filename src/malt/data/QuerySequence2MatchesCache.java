@@ -21,42 +21,73 @@ package malt.data;
 
 import jloda.thirdparty.MurmurHash3;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * hash table used for caching matches associated with a given read
+ * hash table used for caching matches associated with a given read.
+ * The table is bounded both in the number of entries and in the number of bytes used. Entries are evicted using the CLOCK algorithm.
+ * Lookups are lock-free, insertions and evictions hold a lock, and an insertion is simply skipped when the lock is busy
  * Created by huson on 7/9/14.
  */
 public class QuerySequence2MatchesCache {
+    private static final int PROBE_LENGTH = 8; // number of consecutive slots in which an entry may be placed
+    private static final int ITEM_OVERHEAD_BYTES = 64;
+    private static final int MATCH_OVERHEAD_BYTES = 64;
+
     private final int hashMask;
-    private final Item[] hash2data;
-    private int randomNumberSeed = 666;
+    private final AtomicReferenceArray<Item> slots;
+    private final long maxBytes;
+    private final int randomNumberSeed = 666;
 
-    private final int numberOfSyncObjects = (1 << 10);
-    private final int syncObjectsMask = numberOfSyncObjects - 1;
-    // use lots of objects to synchronize on so that threads don't in each others way
-    private final Object[] syncTable = new Object[numberOfSyncObjects];
+    private final ReentrantLock lock = new ReentrantLock();
+    private int clockHand = 0; // guarded by lock
+    private long usedBytes = 0; // guarded by lock
 
-    private long countGet = 0;
-    private long countPut = 0;
+    private final LongAdder countHits = new LongAdder();
+    private final LongAdder countMisses = new LongAdder();
+    private long countPut = 0; // guarded by lock
+    private long countEvictions = 0; // guarded by lock
+    private final LongAdder countSkippedPuts = new LongAdder();
 
     /**
      * constructor
      *
-     * @param bits
-     * @throws Exception
+     * @param bits     log2 of number of entries
+     * @param maxBytes maximum number of bytes used by cached sequences and matches
      */
-    public QuerySequence2MatchesCache(int bits) {
-        if (bits > 31)
-            throw new RuntimeException("bits exceed 31");
-        hash2data = new Item[1 << bits];
+    public QuerySequence2MatchesCache(int bits, long maxBytes) {
+        if (bits > 30)
+            throw new RuntimeException("bits exceed 30");
+        slots = new AtomicReferenceArray<>(1 << bits);
         hashMask = (1 << bits) - 1;
+        this.maxBytes = maxBytes;
+    }
 
-        for (int i = 0; i < numberOfSyncObjects; i++) {
-            syncTable[i] = new Object();
+    /**
+     * get the read matches associated with this sequence, if cached. This method is lock-free
+     *
+     * @param sequence
+     * @param sequenceLength
+     * @return associated read matches (possibly of length 0) or null, if sequence not cached
+     */
+    public ReadMatch[] get(byte[] sequence, int sequenceLength) {
+        final int hash = getHash(sequence, sequenceLength);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            final Item item = slots.get((hash + i) & hashMask);
+            if (item != null && item.hash == hash && equal(sequence, sequenceLength, item.sequence)) {
+                item.referenced = true;
+                countHits.increment();
+                return item.matches;
+            }
         }
+        countMisses.increment();
+        return null;
     }
 
     /**
-     * put a copy into the cache
+     * put a copy into the cache, evicting other entries, if necessary
      *
      * @param sequence
      * @param sequenceLength
@@ -64,205 +95,202 @@ public class QuerySequence2MatchesCache {
      * @param numberOfMatches
      */
     public void put(byte[] sequence, int sequenceLength, ReadMatch[] matches, int numberOfMatches) {
-        int hash = getHash(sequence, sequenceLength);
-        synchronized (syncTable[hash & syncObjectsMask]) {
-            if (hash2data[hash] == null) // check again here, because could have been set while waiting...
-            {
-                // System.err.println("Put: "+ Basic.toString(sequence, sequenceLength)+" hash: "+hash);
-                Item item = hash2data[hash];
-                if (item == null) {
-                    hash2data[hash] = new Item(sequence, sequenceLength, matches, numberOfMatches);
-                    countPut++;
-                } else if (item.addIfNew(sequence, sequenceLength, matches, numberOfMatches))
-                    countPut++;
+        final int hash = getHash(sequence, sequenceLength);
+        final long bytes = estimateBytes(sequenceLength, matches, numberOfMatches);
+        if (bytes > maxBytes)
+            return;
+
+        if (!lock.tryLock()) { // cache is only an optimization, don't wait for other threads
+            countSkippedPuts.increment();
+            return;
+        }
+        try {
+            // choose the slot: the same sequence (put by another thread in the meantime), else an empty slot, else a CLOCK victim
+            int victim = -1;
+            for (int round = 0; round < 2 && victim == -1; round++) {
+                for (int i = 0; i < PROBE_LENGTH; i++) {
+                    final int slot = (hash + i) & hashMask;
+                    final Item item = slots.get(slot);
+                    if (item == null) {
+                        victim = slot;
+                        break;
+                    } else if (item.hash == hash && equal(sequence, sequenceLength, item.sequence))
+                        return; // already present
+                    else if (round == 1) {
+                        if (!item.referenced) {
+                            victim = slot;
+                            break;
+                        }
+                        item.referenced = false; // second chance
+                    }
+                }
             }
+            if (victim == -1)
+                victim = hash & hashMask; // all entries have been referenced again in the meantime
+
+            final Item previous = slots.get(victim);
+            if (previous != null) {
+                slots.set(victim, null);
+                usedBytes -= previous.bytes;
+                countEvictions++;
+            }
+            // make room, if over budget:
+            while (usedBytes + bytes > maxBytes && evictNext()) {
+            }
+            if (usedBytes + bytes > maxBytes)
+                return;
+            slots.set(victim, new Item(hash, copy(sequence, sequenceLength), copy(matches, numberOfMatches), bytes));
+            usedBytes += bytes;
+            countPut++;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * get the read matches associated with this sequence, if cached
+     * evict the next unreferenced entry found by the clock hand, clearing reference bits on the way. Must hold the lock
      *
-     * @param sequence
-     * @param sequenceLength
-     * @return associated read matches
+     * @return true, if an entry was evicted
      */
-    public ReadMatch[] get(byte[] sequence, int sequenceLength) {
-        int hash = getHash(sequence, sequenceLength);
-        // System.err.println("Get: "+ Basic.toString(sequence, sequenceLength)+" hash: "+hash);
-
-        synchronized (syncTable[hash & syncObjectsMask]) {
-            Item item = hash2data[hash];
+    private boolean evictNext() {
+        for (int steps = 0; steps < 2 * slots.length(); steps++) {
+            final int slot = clockHand;
+            clockHand = (clockHand + 1) & hashMask;
+            final Item item = slots.get(slot);
             if (item != null) {
-                countGet++;
-                return item.getMatches(sequence, sequenceLength); // get matches if correct sequence found
+                if (item.referenced)
+                    item.referenced = false;
+                else {
+                    slots.set(slot, null);
+                    usedBytes -= item.bytes;
+                    countEvictions++;
+                    return true;
+                }
             }
-            return null;
         }
+        return false;
     }
 
     /**
-     * for a given key, add the reference id and sequence offset to table
-     * uses very naive synchronization
+     * compute the hash value for a sequence
      *
      * @param key
+     * @param length
      * @return hash value
      */
     private int getHash(byte[] key, int length) {
-        int value = MurmurHash3.murmurhash3x8632(key, 0, length, randomNumberSeed) & hashMask; // & also removes negative sign
-        if (value >= hash2data.length)
-            value %= hash2data.length;
-        return value;
+        return MurmurHash3.murmurhash3x8632(key, 0, length, randomNumberSeed) & 0x7fffffff;
     }
 
     /**
      * report stats on usage of the table
      */
     public void reportStats() {
-        System.err.println("Replicate query cache: in=" + countPut + ", out=" + countGet);
+        lock.lock();
+        try {
+            System.err.println(String.format("Replicate query cache: hits=%d, misses=%d, in=%d, evicted=%d, skipped=%d, size=%,d bytes",
+                    countHits.sum(), countMisses.sum(), countPut, countEvictions, countSkippedPuts.sum(), usedBytes));
+        } finally {
+            lock.unlock();
+        }
     }
 
-    /**
-     * determine whether cache contains this sequence
-     *
-     * @param sequence
-     * @param sequenceLength
-     * @return true, if sequence contained in cache
-     */
-    public boolean contains(byte[] sequence, int sequenceLength) {
-        int hash = getHash(sequence, sequenceLength);
-        // System.err.println("Get: "+ Basic.toString(sequence, sequenceLength)+" hash: "+hash);
+    public long getCountHits() {
+        return countHits.sum();
+    }
+
+    public long getCountMisses() {
+        return countMisses.sum();
+    }
 
-        synchronized (syncTable[hash & syncObjectsMask]) {
-            Item item = hash2data[hash];
-            return item != null && item.contains(sequence, sequenceLength);
+    public long getCountEvictions() {
+        lock.lock();
+        try {
+            return countEvictions;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * hash table item
+     * estimate the number of bytes used by a cache entry
+     *
+     * @return bytes
      */
-    class Item {
-        private Item next;
-        private byte[] sequence;
-        private ReadMatch[] matches;
-
-        /**
-         * constructor
-         *
-         * @param sequence
-         * @param sequenceLength
-         * @param matches
-         * @param numberOfMatches
-         */
-        public Item(byte[] sequence, int sequenceLength, ReadMatch[] matches, int numberOfMatches) {
-            this.sequence = copy(sequence, sequenceLength);
-            this.matches = copy(matches, numberOfMatches);
-        }
-
-        /**
-         * add item if new
-         *
-         * @param sequence
-         * @param sequenceLength
-         * @param matches
-         * @param numberOfMatches
-         * @return true, if added, false if not
-         */
-        public boolean addIfNew(byte[] sequence, int sequenceLength, ReadMatch[] matches, int numberOfMatches) {
-            Item current = this;
-
-            while (current != null && !equal(sequence, sequenceLength, current.sequence, current.sequence.length)) {
-                if (current.next == null) {
-                    current.next = new Item(sequence, sequenceLength, matches, numberOfMatches);
-                    return true;
-                } else
-                    current = current.next;
-            }
-            return false;
+    private static long estimateBytes(int sequenceLength, ReadMatch[] matches, int numberOfMatches) {
+        long bytes = ITEM_OVERHEAD_BYTES + sequenceLength;
+        for (int i = 0; i < numberOfMatches; i++) {
+            final ReadMatch match = matches[i];
+            bytes += MATCH_OVERHEAD_BYTES;
+            if (match.getText() != null)
+                bytes += match.getText().length;
+            if (match.getRMA6Text() != null && match.getRMA6Text() != match.getText())
+                bytes += match.getRMA6Text().length;
         }
+        return bytes;
+    }
 
-        /**
-         * does this item contain this sequence
-         *
-         * @param sequence
-         * @param sequenceLength
-         * @return true, if this item or any chained to it equals the given one
-         */
-        public boolean contains(byte[] sequence, int sequenceLength) {
-            Item current = this;
-
-            while (current != null) {
-                if (equal(sequence, sequenceLength, current.sequence, current.sequence.length))
-                    return true;
-                current = current.next;
-            }
+    /**
+     * check whether a sequence equals a cached one
+     *
+     * @param a
+     * @param aLength
+     * @param b
+     * @return true, if equal
+     */
+    private static boolean equal(byte[] a, int aLength, byte[] b) {
+        if (aLength != b.length)
             return false;
+        for (int i = 0; i < aLength; i++) {
+            if (a[i] != b[i])
+                return false;
         }
+        return true;
+    }
 
-        /**
-         * get list of matches for the given sequence2
-         *
-         * @param sequence
-         * @param sequenceLength
-         * @return matches or null
-         */
-        public ReadMatch[] getMatches(byte[] sequence, int sequenceLength) {
-            Item current = this;
-
-            while (current != null) {
-                if (equal(sequence, sequenceLength, current.sequence, current.sequence.length))
-                    return current.matches;
-                current = current.next;
-            }
-            return null;
-        }
-
+    /**
+     * copy a byte array
+     *
+     * @param array
+     * @param length
+     * @return copy
+     */
+    private static byte[] copy(byte[] array, int length) {
+        byte[] tmp = new byte[length];
+        System.arraycopy(array, 0, tmp, 0, length);
+        return tmp;
+    }
 
-        /**
-         * check whether two strings are equalOverShorterOfBoth
-         *
-         * @param a
-         * @param aLength
-         * @param b
-         * @param bLength
-         * @return true, if equalOverShorterOfBoth
-         */
-        private boolean equal(byte[] a, int aLength, byte[] b, int bLength) {
-            if (aLength != bLength)
-                return false;
-            for (int i = 0; i < aLength; i++) {
-                if (a[i] != b[i])
-                    return false;
-            }
-            return true;
+    /**
+     * copy a read match array. Makes a copy of each entry
+     *
+     * @param array
+     * @param length
+     * @return read match array copy
+     */
+    private static ReadMatch[] copy(ReadMatch[] array, int length) {
+        ReadMatch[] tmp = new ReadMatch[length];
+        for (int i = 0; i < length; i++) {
+            tmp[i] = array[i].getCopy();
         }
+        return tmp;
+    }
 
-        /**
-         * copy a byte array
-         *
-         * @param array
-         * @param length
-         * @return copy
-         */
-        private byte[] copy(byte[] array, int length) {
-            byte[] tmp = new byte[length];
-            System.arraycopy(array, 0, tmp, 0, length);
-            return tmp;
-        }
+    /**
+     * cache entry. Immutable, except for the CLOCK reference bit
+     */
+    private static class Item {
+        final int hash;
+        final byte[] sequence;
+        final ReadMatch[] matches;
+        final long bytes;
+        volatile boolean referenced = false; // set on first hit, so that entries that are never looked up are evicted first
 
-        /**
-         * copy a read match array. Makes a copy of each entry
-         *
-         * @param array
-         * @param length
-         * @return read match array copy
-         */
-        private ReadMatch[] copy(ReadMatch[] array, int length) {
-            ReadMatch[] tmp = new ReadMatch[length];
-            for (int i = 0; i < length; i++) {
-                tmp[i] = array[i].getCopy();
-            }
-            return tmp;
+        Item(int hash, byte[] sequence, ReadMatch[] matches, long bytes) {
+            this.hash = hash;
+            this.sequence = sequence;
+            this.matches = matches;
+            this.bytes = bytes;
         }
     }
 }
@@ -80,6 +80,25 @@ class ReadMatch {
         this.endRef = endRef;
     }
 
+    /**
+     * reuse this object, setting it to the values of the given one. Texts are not copied, but shared
+     *
+     * @param that
+     * @return this
+     */
+    public ReadMatch set(ReadMatch that) {
+        this.bitScore = that.bitScore;
+        this.expected = that.expected;
+        this.percentIdentity = that.percentIdentity;
+        this.referenceId = that.referenceId;
+        this.entryNumber = ++numberOfEntries;
+        this.text = that.text;
+        this.rma6Text = that.rma6Text;
+        this.startRef = that.startRef;
+        this.endRef = that.endRef;
+        return this;
+    }
+
     /**
      * reuse this object
      *
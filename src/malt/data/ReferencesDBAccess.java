@@ -30,20 +30,36 @@ import megan.io.experimental.LongFileGetterPagedMemory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * accesses the references DB
  * Daniel Huson, 3.2015
  */
 public class ReferencesDBAccess implements Closeable {
+    public static final int FORMAT_PACKED_DNA = 2; // ref.db format in which DNA sequences are stored using two bits per letter
+
     private byte[][] headers;
     private byte[][] sequences;
 
     private int numberOfSequences;
     private long numberOfLetters;
+    private boolean packedDNA = false;
+
+    // headers and sequences are published using release/acquire semantics, so no locking is required:
+    private static final VarHandle ARRAY_ELEMENT = MethodHandles.arrayElementVarHandle(byte[][].class);
 
-    private static final int SYNC_BITMASK = 1023;//  length of vector must be SYNC_BITMASK+1
-    private final Object[] syncObjects;
+    // optional bounded cache of sequences, using the CLOCK algorithm:
+    private long maxCachedBytes = 0; // 0: no bound, all sequences are kept once loaded
+    private long cachedBytes = 0;
+    private byte[] referenced; // recently-used bit for each sequence
+    private int[] clock = new int[0]; // indices of all cached sequences
+    private int clockSize = 0;
+    private int clockHand = 0;
+    private final ReentrantLock clockLock = new ReentrantLock();
 
     private final ILongGetter refIndex;
     private final IByteGetter refDB;
@@ -55,11 +71,6 @@ public class ReferencesDBAccess implements Closeable {
      * @throws java.io.IOException
      */
     public ReferencesDBAccess(MaltOptions.MemoryMode memoryMode, File refIndexFile, File refDBFile, File refInfFile) throws IOException, CanceledException {
-        syncObjects = new Object[SYNC_BITMASK + 1];
-        for (int i = 0; i < syncObjects.length; i++) {
-            syncObjects[i] = new Object();
-        }
-
         switch (memoryMode) {
             default:
             case load:
@@ -83,11 +94,18 @@ public class ReferencesDBAccess implements Closeable {
                     numberOfSequences = Integer.parseInt(Basic.getTokenFromTabSeparatedLine(aLine, 1));
                 } else if (aLine.startsWith("letters")) {
                     numberOfLetters = Long.parseLong(Basic.getTokenFromTabSeparatedLine(aLine, 1));
+                } else if (aLine.startsWith("format")) {
+                    final int format = Integer.parseInt(Basic.getTokenFromTabSeparatedLine(aLine, 1));
+                    if (format != FORMAT_PACKED_DNA)
+                        throw new IOException("Unsupported reference DB format: " + format);
+                    packedDNA = true;
                 }
             }
         }
         System.err.println(String.format("Number of sequences:%,14d", numberOfSequences));
         System.err.println(String.format("Number of letters:%,16d", numberOfLetters));
+        if (packedDNA)
+            System.err.println("Reference sequences are packed using two bits per letter");
 
         if (numberOfSequences != refIndex.limit())
             throw new IOException("Expected " + numberOfSequences + "sequences , index contains: " + refIndex.limit());
@@ -103,20 +121,20 @@ public class ReferencesDBAccess implements Closeable {
      * @return header
      */
     public byte[] getHeader(int index) throws IOException {
-        byte[] array = headers[index];
+        byte[] array = (byte[]) ARRAY_ELEMENT.getAcquire(headers, index);
         if (array == null) {
-            synchronized (syncObjects[index & SYNC_BITMASK]) {
-                if (headers[index] == null) {
-                    long dbIndex = refIndex.get(index);
-                    dbIndex += 4 + refDB.getInt(dbIndex); // increment dbIndex by 4 plus length of sequence (to skip over sequence)
-                    int headerLength = refDB.getInt(dbIndex);
-                    dbIndex += 4;
-                    array = new byte[headerLength];
-                    refDB.get(dbIndex, array, 0, headerLength);
-                    headers[index] = array;
-                } else
-                    array = headers[index];
-            }
+            long dbIndex = refIndex.get(index);
+            if (packedDNA)
+                dbIndex += PackedDNA.getSizeInBytes(refDB, dbIndex);
+            else
+                dbIndex += 4 + refDB.getInt(dbIndex); // increment dbIndex by 4 plus length of sequence (to skip over sequence)
+            int headerLength = refDB.getInt(dbIndex);
+            dbIndex += 4;
+            array = new byte[headerLength];
+            refDB.get(dbIndex, array, 0, headerLength);
+            final byte[] other = (byte[]) ARRAY_ELEMENT.compareAndExchangeRelease(headers, index, null, array);
+            if (other != null)
+                array = other; // another thread was faster
         }
         return array;
     }
@@ -128,23 +146,86 @@ public class ReferencesDBAccess implements Closeable {
      * @return sequence
      */
     public byte[] getSequence(int index) throws IOException {
-        byte[] array = sequences[index];
+        byte[] array = (byte[]) ARRAY_ELEMENT.getAcquire(sequences, index);
         if (array == null) {
-            synchronized (syncObjects[index & SYNC_BITMASK]) {
-                if (sequences[index] == null) {
-                    long dbIndex = refIndex.get(index);
-                    int sequenceLength = refDB.getInt(dbIndex);
-                    dbIndex += 4;
-                    array = new byte[sequenceLength];
-                    refDB.get(dbIndex, array, 0, sequenceLength);
-                    sequences[index] = array;
-                } else
-                    array = sequences[index];
+            long dbIndex = refIndex.get(index);
+            if (packedDNA)
+                array = PackedDNA.read(refDB, dbIndex);
+            else {
+                int sequenceLength = refDB.getInt(dbIndex);
+                dbIndex += 4;
+                array = new byte[sequenceLength];
+                refDB.get(dbIndex, array, 0, sequenceLength);
             }
-        }
+            final byte[] other = (byte[]) ARRAY_ELEMENT.compareAndExchangeRelease(sequences, index, null, array);
+            if (other != null)
+                array = other; // another thread was faster
+            else if (maxCachedBytes > 0)
+                addToCache(index, array.length);
+        } else if (maxCachedBytes > 0)
+            referenced[index] = 1;
         return array;
     }
 
+    /**
+     * bound the number of bytes of sequence kept in memory. When exceeded, sequences that have not been used recently are dropped
+     * and will be reloaded when needed again. Use this with memory modes page and map
+     *
+     * @param maxCachedBytes 0 for no bound
+     */
+    public void setMaxCachedBytes(long maxCachedBytes) {
+        if (maxCachedBytes > 0 && referenced == null)
+            referenced = new byte[numberOfSequences];
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    public long getMaxCachedBytes() {
+        return maxCachedBytes;
+    }
+
+    /**
+     * are DNA sequences stored using two bits per letter? If so, sequences are decoded when loaded
+     *
+     * @return true, if packed
+     */
+    public boolean isPackedDNA() {
+        return packedDNA;
+    }
+
+    /**
+     * register a newly loaded sequence with the cache and evict sequences until the cache is within bounds
+     *
+     * @param index
+     * @param length
+     */
+    private void addToCache(int index, int length) {
+        clockLock.lock();
+        try {
+            if (clockSize == clock.length)
+                clock = Arrays.copyOf(clock, Math.max(1024, 2 * clockSize));
+            clock[clockSize++] = index;
+            referenced[index] = 1;
+            cachedBytes += length;
+
+            while (cachedBytes > maxCachedBytes && clockSize > 1) {
+                if (clockHand >= clockSize)
+                    clockHand = 0;
+                final int candidate = clock[clockHand];
+                if (referenced[candidate] != 0) {
+                    referenced[candidate] = 0; // give second chance
+                    clockHand++;
+                } else {
+                    final byte[] evicted = (byte[]) ARRAY_ELEMENT.getAndSetRelease(sequences, candidate, null);
+                    if (evicted != null)
+                        cachedBytes -= evicted.length;
+                    clock[clockHand] = clock[--clockSize]; // threads still holding the sequence can continue to use it
+                }
+            }
+        } finally {
+            clockLock.unlock();
+        }
+    }
+
     /**
      * Get sequence length
      *
@@ -152,8 +233,9 @@ public class ReferencesDBAccess implements Closeable {
      * @return sequence length
      */
     public int getSequenceLength(int index) throws IOException {
-        if (sequences[index] != null)
-            return sequences[index].length;
+        final byte[] array = (byte[]) ARRAY_ELEMENT.getAcquire(sequences, index);
+        if (array != null)
+            return array.length;
         else
             return refDB.getInt(refIndex.get(index));
     }
@@ -21,6 +21,7 @@ package malt.data;
 
 import jloda.util.Basic;
 import jloda.util.CanceledException;
+import jloda.util.ICloseableIterator;
 import jloda.util.ProgressPercentage;
 import malt.io.FastAFileIteratorBytes;
 import megan.io.OutputWriter;
@@ -28,6 +29,7 @@ import megan.io.OutputWriter;
 import java.io.*;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * builds the reference sequences database
@@ -39,6 +41,11 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
     private int numberOfSequences;
     private long numberOfLetters;
 
+    private boolean keepSequences = true; // if false, only headers are kept and sequences are re-read from the input files
+    private List<String> fileNames;
+    private IAlphabet alphabet;
+    private int numberOfThreads = 1; // number of threads used to decompress BGZF input files
+
     /**
      * constructor
      */
@@ -79,7 +86,8 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
             sequences = grow(sequences);
         }
         headers[numberOfSequences] = header;
-        sequences[numberOfSequences] = sequence;
+        if (keepSequences)
+            sequences[numberOfSequences] = sequence;
         numberOfSequences++;
         numberOfLetters += sequence.length;
     }
@@ -141,7 +149,7 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
      * Get sequence. Index starts at 0
      *
      * @param index
-     * @return sequence
+     * @return sequence or null, if sequences are not kept in memory
      */
     public byte[] getSequence(int index) {
         return sequences[index];
@@ -155,6 +163,24 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
      * @throws CanceledException
      */
     public void loadFastAFiles(final List<String> fileNames, final IAlphabet alphabet) throws IOException {
+        loadFastAFiles(fileNames, alphabet, true, 1);
+    }
+
+    /**
+     * load a collection of fastA files
+     *
+     * @param fileNames
+     * @param alphabet
+     * @param keepSequences   if false, only headers are kept in memory. Use sequences() to access the sequences
+     * @param numberOfThreads number of threads used to decompress BGZF input files
+     * @throws IOException
+     */
+    public void loadFastAFiles(final List<String> fileNames, final IAlphabet alphabet, boolean keepSequences, int numberOfThreads) throws IOException {
+        this.fileNames = fileNames;
+        this.alphabet = alphabet;
+        this.keepSequences = keepSequences;
+        this.numberOfThreads = numberOfThreads;
+
         long totalSize = 0;
         for (String fileName : fileNames) {
             totalSize += (new File(fileName)).length();
@@ -170,6 +196,71 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
         }
     }
 
+    /**
+     * iterates over all sequences in order of their index. If sequences are not kept in memory, they are re-read from the input files
+     *
+     * @return iterator over all sequences
+     */
+    public ICloseableIterator<byte[]> sequences() {
+        return new ICloseableIterator<byte[]>() {
+            private int index = 0;
+            private int fileIndex = 0;
+            private FastAFileIteratorBytes it;
+
+            @Override
+            public boolean hasNext() {
+                return index < numberOfSequences;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                if (keepSequences)
+                    return sequences[index++];
+                try {
+                    while (true) {
+                        if (it == null) {
+                            if (fileIndex == fileNames.size())
+                                throw new IOException("Unexpected end of input files");
+                            it = new FastAFileIteratorBytes(fileNames.get(fileIndex++), alphabet, numberOfThreads);
+                        }
+                        // same pairing of headers and sequences as in loadFastAFile():
+                        while (it.hasNext()) {
+                            it.next(); // header
+                            if (it.hasNext()) {
+                                index++;
+                                return it.next();
+                            }
+                        }
+                        it.close();
+                        it = null;
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (it != null) {
+                    it.close();
+                    it = null;
+                }
+            }
+
+            @Override
+            public long getMaximumProgress() {
+                return numberOfSequences;
+            }
+
+            @Override
+            public long getProgress() {
+                return index;
+            }
+        };
+    }
+
     /**
      * load data from a fastA file
      *
@@ -177,7 +268,7 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
      * @throws FileNotFoundException
      */
     private void loadFastAFile(final String fileName, final IAlphabet alphabet) throws IOException {
-        try (FastAFileIteratorBytes it = new FastAFileIteratorBytes(fileName, alphabet)) {
+        try (FastAFileIteratorBytes it = new FastAFileIteratorBytes(fileName, alphabet, numberOfThreads)) {
             while (it.hasNext()) {
                 byte[] header = it.next();
                 if (it.hasNext()) {
@@ -196,10 +287,10 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
      * @throws CanceledException
      */
     public void saveFastAFile(String fileName) throws IOException {
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(fileName), 8192)) {
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(fileName), 8192); ICloseableIterator<byte[]> it = sequences()) {
             for (int i = 0; i < numberOfSequences; i++) {
                 w.write(Basic.toString(headers[i]) + "\n");
-                w.write(Basic.toString(sequences[i]) + "\n");
+                w.write(Basic.toString(it.next()) + "\n");
             }
         }
     }
@@ -212,19 +303,37 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
      * @throws CanceledException
      */
     public void save(File refIndexFile, File refDBFile, File refInfFile, boolean saveFirstWordOnly) throws IOException, CanceledException {
+        save(refIndexFile, refDBFile, refInfFile, saveFirstWordOnly, false);
+    }
+
+    /**
+     * Save the reference data as an index file and a datafile
+     *
+     * @param refIndexFile
+     * @param refDBFile
+     * @param packDNA      store DNA sequences using two bits per letter (ref.db format 2)
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public void save(File refIndexFile, File refDBFile, File refInfFile, boolean saveFirstWordOnly, boolean packDNA) throws IOException, CanceledException {
         System.err.println("Writing file: " + refDBFile);
 
         try (ProgressPercentage progress = new ProgressPercentage("Writing file: " + refIndexFile, numberOfLetters);
-             final OutputWriter refDBOutputStream = new OutputWriter(refDBFile); OutputWriter refIndexOutputStream = new OutputWriter(refIndexFile)) {
+             final OutputWriter refDBOutputStream = new OutputWriter(refDBFile); OutputWriter refIndexOutputStream = new OutputWriter(refIndexFile);
+             ICloseableIterator<byte[]> it = sequences()) {
             long dbFilePos = 0;
 
             for (int i = 0; i < numberOfSequences; i++) {
                 refIndexOutputStream.writeLong(dbFilePos);
 
-                final byte[] sequence = sequences[i];
-                refDBOutputStream.writeInt(sequence.length);
-                refDBOutputStream.write(sequence);
-                dbFilePos += 4 + sequence.length;
+                final byte[] sequence = it.next();
+                if (packDNA)
+                    dbFilePos += PackedDNA.write(sequence, refDBOutputStream);
+                else {
+                    refDBOutputStream.writeInt(sequence.length);
+                    refDBOutputStream.write(sequence);
+                    dbFilePos += 4 + sequence.length;
+                }
 
                 final byte[] header = (saveFirstWordOnly ? getFirstWord(headers[i]) : headers[i]);
                 refDBOutputStream.writeInt(header.length);
@@ -238,6 +347,8 @@ public class ReferencesDBBuilder implements ISequenceAccessor {
         try (BufferedWriter w = new BufferedWriter(new FileWriter(refInfFile))) {
             w.write("sequences\t" + numberOfSequences + "\n");
             w.write("letters\t" + numberOfLetters + "\n");
+            if (packDNA)
+                w.write("format\t" + ReferencesDBAccess.FORMAT_PACKED_DNA + "\n");
         }
     }
 
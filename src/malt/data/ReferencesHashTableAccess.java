@@ -132,6 +132,32 @@ public class ReferencesHashTableAccess implements Closeable {
         return 0;
     }
 
+    /**
+     * lookup the entries for a block of seeds in stages: first all index slots are read, then all rows are set.
+     * This allows the memory accesses of different seeds to overlap. Rows for which nothing is found are set to empty
+     *
+     * @param hashValues hash values of the seeds, as computed by getHash()
+     * @param locations  array of at least count entries used to hold locations
+     * @param rows       rows to set
+     * @param count      number of seeds
+     * @return total size of all rows
+     */
+    public int lookup(int[] hashValues, long[] locations, Row[] rows, int count) throws IOException {
+        final long limit = tableIndexGetter.limit();
+        for (int i = 0; i < count; i++) {
+            final int hashValue = hashValues[i];
+            locations[i] = (hashValue >= 0 && hashValue < limit ? tableIndexGetter.get(hashValue) : 0);
+        }
+        int totalSize = 0;
+        for (int i = 0; i < count; i++) {
+            if (setRow(locations[i], rows[i]))
+                totalSize += rows[i].size();
+            else
+                rows[i].setEmpty();
+        }
+        return totalSize;
+    }
+
     /**
      * get the hash value
      *
@@ -205,13 +231,7 @@ public class ReferencesHashTableAccess implements Closeable {
             location = -location;
             row.setPair((int) (location >> 32), (int) location); // is a singleton entry
         } else {
-            int length = tableDataGetter.get(location); // length is number int's that follow this first int that tells us the length
-            if (row.tmpArray.length <= length)
-                row.tmpArray = new int[length + 1];
-            row.tmpArray[0] = length;
-            for (int i = 1; i <= length; i++)
-                row.tmpArray[i] = tableDataGetter.get(location + i);
-            row.set(row.tmpArray, 0);
+            row.set(tableDataGetter, location); // row is a view of the table data, first int is the number of int's that follow
         }
         return true;
     }
@@ -21,14 +21,19 @@ package malt.data;
 
 import jloda.thirdparty.MurmurHash3;
 import jloda.util.Basic;
+import jloda.util.ICloseableIterator;
 import jloda.util.ProgressPercentage;
 import jloda.util.Single;
+import malt.sequence.ProteinSequenceEncoder;
 import malt.util.Utilities;
 import megan.io.IntFilePutter;
 import megan.io.OutputWriter;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -60,9 +65,10 @@ public class ReferencesHashTableBuilder {
 
     private final SeedShape seedShape; //  seed shape that is saved and loaded from index
 
-    private final int SYNC_BITMASK = 1023;
-    // use lots of objects to synchronize on so that threads don't in each others way
-    private final Object[] syncObjects = new Object[SYNC_BITMASK + 1];
+    private final static int BYTES_PER_SEED_IN_RUN = 16; // refIndex and pos, plus sort key, used for out-of-core build
+    private final static int MAX_MERGE_FAN_IN = 128; // max number of run files open at the same time, stays well below usual file descriptor limits
+
+    private final static int LETTERS_PER_ROUND_PER_THREAD = (1 << 21); // bounds the size of the seed buckets used in one round
 
     private final int stepSize;
 
@@ -111,14 +117,6 @@ public class ReferencesHashTableBuilder {
         // final double averageWordsPerHashValue = Math.max(1,  (totalNumberOfSeeds / (double) tableSize));
         // maxHitsPerHash = (int)Math.max(1, maxHitPerSeed * averageWordsPerHashValue);
         System.err.println("maxHitsPerHash set to: " + maxHitsPerHash);
-
-        final ProgressPercentage progress = new ProgressPercentage("Initializing arrays...");
-
-        for (int i = 0; i < syncObjects.length; i++) {
-            syncObjects[i] = new Object();
-        }
-
-        progress.reportTaskCompleted();
     }
 
     /**
@@ -139,6 +137,449 @@ public class ReferencesHashTableBuilder {
         tableDataPutter.close();
     }
 
+    /**
+     * build the hash table out-of-core. Sequences are streamed from the references DB, seeds are written to runs files sorted by hash value,
+     * and the runs are then merged into the table files. Apart from the references headers, memory usage is bounded by the given budget
+     *
+     * @param tableIndexFile
+     * @param tableDataFile
+     * @param referencesDB
+     * @param memoryBudget   number of bytes to use for sorting seeds
+     */
+    public void buildTableOutOfCore(final File tableIndexFile, final File tableDataFile, final ReferencesDBBuilder referencesDB, long memoryBudget) throws IOException {
+        final int maxSeedsPerRun = (int) Math.max(1, Math.min(Basic.MAX_ARRAY_SIZE / 2, memoryBudget / BYTES_PER_SEED_IN_RUN));
+        final ArrayList<File> runFiles = new ArrayList<>();
+        final ArrayList<File> temporaryFiles = new ArrayList<>();
+        try {
+            writeSortedRuns(tableDataFile.getParentFile(), referencesDB, maxSeedsPerRun, runFiles);
+            temporaryFiles.addAll(runFiles);
+            while (runFiles.size() > MAX_MERGE_FAN_IN)
+                mergeRunsIntoFewerRuns(tableDataFile.getParentFile(), runFiles, temporaryFiles, memoryBudget);
+            mergeRuns(runFiles, tableIndexFile, tableDataFile, memoryBudget);
+        } finally {
+            for (File file : temporaryFiles) {
+                if (file.exists() && !file.delete())
+                    System.err.println("Failed to delete temporary file: " + file);
+            }
+        }
+    }
+
+    /**
+     * one pass of a multi-pass merge: merges each group of MAX_MERGE_FAN_IN consecutive runs into a single run.
+     * Groups are consecutive, so seeds with the same hash value keep their order
+     *
+     * @param directory      directory for run files
+     * @param runFiles       runs to be merged, replaced by the merged runs
+     * @param temporaryFiles new run files are added to this list
+     * @param memoryBudget   used to determine the size of the read buffers
+     */
+    private void mergeRunsIntoFewerRuns(final File directory, final ArrayList<File> runFiles, final ArrayList<File> temporaryFiles, long memoryBudget) throws IOException {
+        final int bufferSize = (int) Math.max(1 << 16, Math.min(1 << 23, memoryBudget / (MAX_MERGE_FAN_IN + 1)));
+        final ArrayList<File> mergedRuns = new ArrayList<>();
+        try (ProgressPercentage progress = new ProgressPercentage("Merging " + runFiles.size() + " runs into " + ((runFiles.size() + MAX_MERGE_FAN_IN - 1) / MAX_MERGE_FAN_IN) + "...", runFiles.size())) {
+            for (int start = 0; start < runFiles.size(); start += MAX_MERGE_FAN_IN) {
+                final List<File> group = runFiles.subList(start, Math.min(runFiles.size(), start + MAX_MERGE_FAN_IN));
+                if (group.size() == 1)
+                    mergedRuns.add(group.get(0));
+                else {
+                    final File file = File.createTempFile("malt-run", ".tmp", directory);
+                    temporaryFiles.add(file);
+                    mergeIntoRun(group, file, bufferSize);
+                    mergedRuns.add(file);
+                    for (File used : group) {
+                        if (!used.delete())
+                            System.err.println("Failed to delete temporary file: " + used);
+                    }
+                }
+                progress.setProgress(start + group.size());
+            }
+        }
+        runFiles.clear();
+        runFiles.addAll(mergedRuns);
+    }
+
+    /**
+     * merges sorted runs into a single sorted run
+     *
+     * @param runs       sorted runs, seeds with the same hash value are kept in the order of the runs
+     * @param output     output run file
+     * @param bufferSize size of read buffers
+     */
+    private static void mergeIntoRun(final List<File> runs, final File output, int bufferSize) throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size());
+        long count = 0;
+        try {
+            for (int r = 0; r < runs.size(); r++) {
+                final RunReader reader = new RunReader(runs.get(r), r, bufferSize);
+                count += reader.remaining;
+                if (reader.next())
+                    queue.add(reader);
+                else
+                    reader.close();
+            }
+            try (DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 20))) {
+                outs.writeLong(count);
+                while (queue.size() > 0) {
+                    final RunReader reader = queue.poll();
+                    outs.writeInt(reader.hashValue);
+                    outs.writeInt(reader.refIndex);
+                    outs.writeInt(reader.pos);
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue)
+                reader.close();
+        }
+    }
+
+    /**
+     * computes all seeds and writes them to run files, each sorted by hash value
+     *
+     * @param directory      directory for run files
+     * @param referencesDB
+     * @param maxSeedsPerRun
+     * @param runFiles       the run files are added to this list
+     */
+    private void writeSortedRuns(final File directory, final ReferencesDBBuilder referencesDB, final int maxSeedsPerRun, final ArrayList<File> runFiles) throws IOException {
+        final long[] keys = new long[maxSeedsPerRun]; // hash value in upper bits, number of seed in run in lower bits
+        final int[] data = new int[2 * maxSeedsPerRun]; // refIndex and pos for each seed
+        int count = 0;
+        long countLowComplexitySeeds = 0;
+
+        final byte[] seedBytes = seedShape.createBuffer();
+        try (ICloseableIterator<byte[]> it = referencesDB.sequences();
+             ProgressPercentage progress = new ProgressPercentage("Writing sorted seed runs...", referencesDB.getNumberOfSequences())) {
+            for (int refIndex = 0; it.hasNext(); refIndex++) {
+                final byte[] sequence = it.next();
+                final int top = sequence.length - seedShape.getLength() + 1;
+                for (int pos = 0; pos < top; pos += stepSize) {
+                    seedShape.getSeed(sequence, pos, seedBytes);
+                    if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+                        if (count == maxSeedsPerRun) {
+                            runFiles.add(writeRun(directory, keys, data, count));
+                            count = 0;
+                        }
+                        keys[count] = ((long) getHash(seedBytes) << 32) | count;
+                        data[2 * count] = refIndex;
+                        data[2 * count + 1] = pos;
+                        count++;
+                        theSize++;
+                    } else
+                        countLowComplexitySeeds++;
+                }
+                progress.incrementProgress();
+            }
+        }
+        if (count > 0)
+            runFiles.add(writeRun(directory, keys, data, count));
+        System.err.println(String.format("Number of low-complexity seeds skipped: %,d", countLowComplexitySeeds));
+        System.err.println(String.format("Number of sorted runs: %,d", runFiles.size()));
+    }
+
+    /**
+     * sorts seeds by hash value and writes them to a temporary run file. Seeds with the same hash value keep their order
+     *
+     * @return run file
+     */
+    private File writeRun(File directory, long[] keys, int[] data, int count) throws IOException {
+        Arrays.parallelSort(keys, 0, count);
+
+        final File file = File.createTempFile("malt-run", ".tmp", directory);
+        try (DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            outs.writeLong(count);
+            for (int i = 0; i < count; i++) {
+                final int which = (int) keys[i];
+                outs.writeInt((int) (keys[i] >>> 32));
+                outs.writeInt(data[2 * which]);
+                outs.writeInt(data[2 * which + 1]);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * merges the sorted runs and writes the table index and table data sequentially
+     *
+     * @param runFiles
+     * @param tableIndexFile
+     * @param tableDataFile
+     * @param memoryBudget   used to determine the size of the read buffers
+     */
+    private void mergeRuns(final ArrayList<File> runFiles, final File tableIndexFile, final File tableDataFile, long memoryBudget) throws IOException {
+        final int bufferSize = (int) Math.max(1 << 16, Math.min(1 << 23, memoryBudget / Math.max(1, runFiles.size())));
+
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runFiles.size()));
+        for (int r = 0; r < runFiles.size(); r++) {
+            final RunReader reader = new RunReader(runFiles.get(r), r, bufferSize);
+            if (reader.next())
+                queue.add(reader);
+            else
+                reader.close();
+        }
+
+        final int[] row = new int[2 * (maxHitsPerHash + 1)];
+
+        try (SequentialTableWriter tableWriter = new SequentialTableWriter(tableIndexFile, tableDataFile);
+             ProgressPercentage progress = new ProgressPercentage("Merging sorted seed runs...", tableSize)) {
+            while (queue.size() > 0) {
+                final int hashValue = queue.peek().hashValue;
+                int count = 0;
+                while (queue.size() > 0 && queue.peek().hashValue == hashValue) {
+                    final RunReader reader = queue.poll();
+                    if (count <= maxHitsPerHash) {
+                        row[2 * count] = reader.refIndex;
+                        row[2 * count + 1] = reader.pos;
+                    }
+                    count++;
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
+                tableWriter.writeRow(hashValue, row, count);
+                progress.setProgress(hashValue);
+            }
+        } finally {
+            for (RunReader reader : queue)
+                reader.close();
+        }
+    }
+
+    /**
+     * build the hash table by sorting. All seeds are computed in parallel as (hash value, refIndex and pos) pairs,
+     * radix-sorted in parallel by hash value and then the rows are written sequentially.
+     * This avoids the random writes of fillTable(), but requires 32 bytes per seed.
+     * If there are too many seeds to sort in one array, the table is built using buildTable() instead
+     *
+     * @param tableIndexFile
+     * @param tableDataFile
+     * @param referencesDB
+     * @param numberOfThreads0
+     * @param buildTableInMemory used when falling back to buildTable()
+     */
+    public void buildTableBySorting(final File tableIndexFile, final File tableDataFile, final ReferencesDBBuilder referencesDB, int numberOfThreads0, boolean buildTableInMemory) throws IOException {
+        final int numberOfThreads = Math.max(1, Math.min(referencesDB.getNumberOfSequences(), numberOfThreads0));
+
+        // each thread processes a contiguous range of references, so that seeds of equal hash value remain ordered by reference after sorting:
+        final int[] rangeStart = new int[numberOfThreads + 1];
+        {
+            final long lettersPerThread = referencesDB.getNumberOfLetters() / numberOfThreads + 1;
+            long letters = 0;
+            int t = 1;
+            for (int refIndex = 0; refIndex < referencesDB.getNumberOfSequences() && t < numberOfThreads; refIndex++) {
+                letters += referencesDB.getSequence(refIndex).length;
+                if (letters >= t * lettersPerThread)
+                    rangeStart[t++] = refIndex + 1;
+            }
+            while (t <= numberOfThreads)
+                rangeStart[t++] = referencesDB.getNumberOfSequences();
+        }
+
+        // count seeds:
+        final long[] seedOffset = new long[numberOfThreads + 1];
+        final long[] countLowComplexitySeeds = new long[numberOfThreads];
+        Utilities.runInParallel(numberOfThreads, new Utilities.IParallelTask() {
+            public void run(int threadNumber) {
+                seedOffset[threadNumber + 1] = computeSeedPairs(referencesDB, rangeStart[threadNumber], rangeStart[threadNumber + 1], null, 0, countLowComplexitySeeds, threadNumber);
+            }
+        });
+        for (int t = 0; t < numberOfThreads; t++)
+            seedOffset[t + 1] += seedOffset[t];
+        theSize = seedOffset[numberOfThreads];
+        System.err.println(String.format("Number of low-complexity seeds skipped: %,d", Basic.getSum(countLowComplexitySeeds)));
+
+        if (2 * theSize > Basic.MAX_ARRAY_SIZE) {
+            System.err.println(String.format("Too many seeds to build table by sorting (%,d), using default build instead", theSize));
+            buildTable(tableIndexFile, tableDataFile, referencesDB, numberOfThreads0, buildTableInMemory);
+            return;
+        }
+
+        // compute seeds:
+        final long[] pairs = new long[(int) (2 * theSize)];
+        Utilities.runInParallel(numberOfThreads, new Utilities.IParallelTask() {
+            public void run(int threadNumber) {
+                computeSeedPairs(referencesDB, rangeStart[threadNumber], rangeStart[threadNumber + 1], pairs, (int) (2 * seedOffset[threadNumber]), new long[numberOfThreads], threadNumber);
+            }
+        });
+
+        // sort by hash value:
+        final int bitsUsed = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(hashMask, tableSize - 1)));
+        final long[] sorted;
+        try (ProgressPercentage progress = new ProgressPercentage("Sorting seeds...")) {
+            sorted = ProteinSequenceEncoder.radixSort2(pairs, pairs.length, bitsUsed, 8, numberOfThreads, progress);
+        }
+
+        // write rows:
+        final int[] row = new int[2 * (maxHitsPerHash + 1)];
+        try (SequentialTableWriter tableWriter = new SequentialTableWriter(tableIndexFile, tableDataFile);
+             ProgressPercentage progress = new ProgressPercentage("Writing table...", sorted.length)) {
+            int i = 0;
+            while (i < sorted.length) {
+                final int hashValue = (int) sorted[i];
+                int count = 0;
+                for (; i < sorted.length && sorted[i] == hashValue; i += 2) {
+                    if (count <= maxHitsPerHash) {
+                        row[2 * count] = (int) (sorted[i + 1] >>> 32);
+                        row[2 * count + 1] = (int) sorted[i + 1];
+                    }
+                    count++;
+                }
+                tableWriter.writeRow(hashValue, row, count);
+                progress.setProgress(i);
+            }
+        }
+    }
+
+    /**
+     * computes the seeds for a range of references as pairs of hash value and refIndex plus pos
+     *
+     * @param referencesDB
+     * @param start                   first reference
+     * @param end                     last reference plus 1
+     * @param pairs                   array to write to, or null, if only counting
+     * @param offset                  position in pairs to start writing at
+     * @param countLowComplexitySeeds per thread count of low complexity seeds
+     * @param threadNumber
+     * @return number of seeds
+     */
+    private long computeSeedPairs(final ReferencesDBBuilder referencesDB, int start, int end, long[] pairs, int offset, long[] countLowComplexitySeeds, int threadNumber) {
+        final byte[] seedBytes = seedShape.createBuffer();
+        long count = 0;
+        for (int refIndex = start; refIndex < end; refIndex++) {
+            final byte[] sequence = referencesDB.getSequence(refIndex);
+            final int top = sequence.length - seedShape.getLength() + 1;
+            for (int pos = 0; pos < top; pos += stepSize) {
+                seedShape.getSeed(sequence, pos, seedBytes);
+                if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+                    if (pairs != null) {
+                        pairs[offset++] = getHash(seedBytes);
+                        pairs[offset++] = ((long) refIndex << 32) | pos;
+                    }
+                    count++;
+                } else
+                    countLowComplexitySeeds[threadNumber]++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * writes the table index and the table data sequentially, row by row in increasing order of hash value.
+     * Table index entries for hash values that are not written are set to 0
+     */
+    private class SequentialTableWriter implements Closeable {
+        private final OutputWriter indexOuts;
+        private final OutputWriter dataOuts;
+        private final Random random = new Random();
+        private long nextFreeLocation = 1; // table data starts at location 1
+        private int nextHashValue = 0; // next entry of the table index to be written
+
+        private long totalKeys = 0;
+        private long totalSeeds = 0;
+        private long totalDropped = 0;
+
+        SequentialTableWriter(File tableIndexFile, File tableDataFile) throws IOException {
+            indexOuts = new OutputWriter(tableIndexFile);
+            dataOuts = new OutputWriter(tableDataFile);
+            dataOuts.writeInt(0);
+        }
+
+        /**
+         * write the row for a given hash value
+         *
+         * @param hashValue must be larger than hash value of previous row
+         * @param row       pairs of refIndex and pos, contains min(count,maxHitsPerHash+1) pairs, is randomized
+         * @param count     number of seeds that have this hash value
+         */
+        void writeRow(int hashValue, int[] row, int count) throws IOException {
+            for (; nextHashValue < hashValue; nextHashValue++)
+                indexOuts.writeLong(0L);
+
+            if (count > maxHitsPerHash) {
+                indexOuts.writeLong(0L);
+                totalDropped += count;
+            } else if (count > 1) {
+                random.setSeed((long) hashValue * hashValue);  // use location in hash table as seed, as in randomizeBuildRows()
+                Utilities.randomizePairs(row, 0, 2 * count, random);
+                indexOuts.writeLong(nextFreeLocation);
+                dataOuts.writeInt(2 * count);
+                for (int i = 0; i < 2 * count; i++)
+                    dataOuts.writeInt(row[i]);
+                nextFreeLocation += 2 * count + 1;
+                totalKeys++;
+                totalSeeds += count;
+            } else if (count == 1) { // singleton entry
+                indexOuts.writeLong(-(((long) row[0] << 32) | row[1]));
+                totalKeys++;
+                totalSeeds++;
+            } else
+                indexOuts.writeLong(0L);
+            nextHashValue++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (; nextHashValue < tableSize; nextHashValue++)
+                indexOuts.writeLong(0L);
+            indexOuts.close();
+            dataOuts.close();
+            System.err.println(String.format("Total keys used:    %,14d", totalKeys));
+            System.err.println(String.format("Total seeds matched:%,14d", totalSeeds));
+            System.err.println(String.format("Total seeds dropped:%,14d", totalDropped));
+        }
+    }
+
+    /**
+     * reads a sorted run file. Readers are ordered by current hash value and then by run number, so that seeds
+     * with the same hash value are merged in the order in which they were generated
+     */
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+        private final DataInputStream ins;
+        private final int runNumber;
+        private long remaining;
+        int hashValue;
+        int refIndex;
+        int pos;
+
+        RunReader(File file, int runNumber, int bufferSize) throws IOException {
+            this.ins = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+            this.runNumber = runNumber;
+            this.remaining = ins.readLong();
+        }
+
+        /**
+         * read the next seed
+         *
+         * @return true, if read
+         */
+        boolean next() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            hashValue = ins.readInt();
+            refIndex = ins.readInt();
+            pos = ins.readInt();
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader that) {
+            if (this.hashValue != that.hashValue)
+                return Integer.compare(this.hashValue, that.hashValue);
+            else
+                return Integer.compare(this.runNumber, that.runNumber);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ins.close();
+        }
+    }
+
     /**
      * save the table index
      * @param tableIndex
@@ -164,57 +605,13 @@ public class ReferencesHashTableBuilder {
      */
     private void countSeeds(final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
         final int numberOfThreads = Math.min(referencesDB.getNumberOfSequences(), numberOfThreads0);
-        final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
-
-        final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
         final ProgressPercentage progressPercentage = new ProgressPercentage("Analysing seeds...", referencesDB.getNumberOfSequences());
-        final int[] countsForProgress = new int[numberOfThreads];
         final long[] countLowComplexitySeeds = new long[numberOfThreads];
 
-        // launch the worker threads
-        for (int i = 0; i < numberOfThreads; i++) {
-            final int threadNumber = i;
-
-            executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        final byte[] seedBytes = seedShape.createBuffer();
-                        for (int refIndex = threadNumber; refIndex < referencesDB.getNumberOfSequences(); refIndex += numberOfThreads) {
-                            byte[] sequence = referencesDB.getSequence(refIndex);
-                            int top = sequence.length - seedShape.getLength() + 1;
-                            for (int pos = 0; pos < top; pos += stepSize) {
-                                seedShape.getSeed(sequence, pos, seedBytes);
-                                if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
-                                    int hashValue = getHash(seedBytes);
-                                    synchronized (syncObjects[hashValue & SYNC_BITMASK]) {
-                                        if (tableIndex[hashValue] <= maxHitsPerHash)
-                                            tableIndex[hashValue]++;
-                                    }
-                                } else
-                                    countLowComplexitySeeds[threadNumber]++;
-                            }
-                            countsForProgress[threadNumber]++;
-                        }
-                    } finally {
-                        countDownLatch.countDown();
-                    }
-                }
-            });
-        }
+        processSeedsByPartition(referencesDB, numberOfThreads, false, countLowComplexitySeeds, progressPercentage);
 
-        // wait for jobs to complete:
-        while (countDownLatch.getCount() > 0) {
-            try {
-                Thread.sleep(100); // sleep and then report progress
-            } catch (InterruptedException e) {
-                Basic.caught(e);
-                break;
-            }
-            progressPercentage.setProgress(Basic.getSum(countsForProgress));
-        }
         progressPercentage.close();
         System.err.println(String.format("Number of low-complexity seeds skipped: %,d", Basic.getSum(countLowComplexitySeeds)));
-        executor.shutdown();
     }
 
     /**
@@ -303,70 +700,172 @@ public class ReferencesHashTableBuilder {
      */
     private void fillTable(final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
         final int numberOfThreads = Math.min(referencesDB.getNumberOfSequences(), numberOfThreads0);
-        final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
-
-        // populate the table
         final ProgressPercentage progressPercentage = new ProgressPercentage("Filling hash table...", referencesDB.getNumberOfSequences());
-        final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
-        final int[] countsForProgress = new int[numberOfThreads];
-        final long[] counts = new long[numberOfThreads];
 
-        // launch the worker threads
-        for (int i = 0; i < numberOfThreads; i++) {
-            final int threadNumber = i;
+        theSize = processSeedsByPartition(referencesDB, numberOfThreads, true, new long[numberOfThreads], progressPercentage);
 
-            executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        final byte[] seedBytes = seedShape.createBuffer();
-                        for (int refIndex = threadNumber; refIndex < referencesDB.getNumberOfSequences(); refIndex += numberOfThreads) {
-                            final byte[] sequence = referencesDB.getSequence(refIndex);
-                            final int top = sequence.length - seedShape.getLength() + 1;
-                            for (int pos = 0; pos < top; pos += stepSize) {
-                                seedShape.getSeed(sequence, pos, seedBytes);
-                                if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
-                                    final int hashValue = getHash(seedBytes);
-
-                                    synchronized (syncObjects[hashValue & SYNC_BITMASK]) {
-                                        final long location = tableIndex[hashValue];
-                                        if (location == -1) {    // has been marked as singleton, so store value directly
-                                            final long value = -(((long) refIndex << 32) | pos);
-                                            tableIndex[hashValue] = value;
-                                        } else if (location > 0) {
-                                            final int length = tableDataPutter.get(location);
-                                            tableDataPutter.put(location, length + 2);
-                                            tableDataPutter.put(location + length + 1, refIndex);
-                                            tableDataPutter.put(location + length + 2, pos);
-                                        }
+        progressPercentage.reportTaskCompleted();
+    }
+
+    /**
+     * process all seeds of all references, either counting them or filling them into the table. This is done in rounds.
+     * In each round, each thread computes the seeds of a subset of the references of the round and places them in
+     * buckets, one per hash partition. Then each thread applies the seeds of its own partition to the table.
+     * Each partition is a contiguous range of hash values, so that each thread works on its own part of the table.
+     * Because no two threads ever touch the same hash value, no synchronization is required
+     *
+     * @param referencesDB
+     * @param numberOfThreads
+     * @param fill                    if false, count seeds, otherwise, fill table
+     * @param countLowComplexitySeeds per thread count of low complexity seeds
+     * @param progressPercentage
+     * @return number of seeds processed
+     */
+    private long processSeedsByPartition(final ReferencesDBBuilder referencesDB, final int numberOfThreads, final boolean fill, final long[] countLowComplexitySeeds,
+                                         final ProgressPercentage progressPercentage) {
+        final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        final int intsPerSeed = (fill ? 3 : 1); // hash value, or hash value, refIndex and pos
+        final int partitionSize = tableSize / numberOfThreads + 1; // hash values are in range 0..tableSize-1
+        // buckets that grew beyond twice the expected size of a round, e.g. due to a very long reference, are trimmed before the next round:
+        final int maxRetainedBucketSize = (int) Math.min(Basic.MAX_ARRAY_SIZE, Math.max(1024L, 2L * intsPerSeed * LETTERS_PER_ROUND_PER_THREAD / Math.max(1, stepSize) / numberOfThreads));
+
+        // buckets[t][p] contains all seeds computed by thread t that belong to partition p
+        final SeedBucket[][] buckets = new SeedBucket[numberOfThreads][numberOfThreads];
+        for (int t = 0; t < numberOfThreads; t++) {
+            for (int p = 0; p < numberOfThreads; p++)
+                buckets[t][p] = new SeedBucket();
+        }
+        final long[] counts = new long[numberOfThreads];
+
+        try {
+            int roundStart = 0;
+            while (roundStart < referencesDB.getNumberOfSequences()) {
+                // determine the references to be processed in this round:
+                int roundEnd = roundStart;
+                for (long letters = 0; roundEnd < referencesDB.getNumberOfSequences() && letters < (long) LETTERS_PER_ROUND_PER_THREAD * numberOfThreads; roundEnd++) {
+                    letters += referencesDB.getSequence(roundEnd).length;
+                }
+                final int start = roundStart;
+                final int end = roundEnd;
+
+                // compute seeds and place them in buckets:
+                final CountDownLatch seedsLatch = new CountDownLatch(numberOfThreads);
+                for (int i = 0; i < numberOfThreads; i++) {
+                    final int threadNumber = i;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                final SeedBucket[] myBuckets = buckets[threadNumber];
+                                for (SeedBucket bucket : myBuckets)
+                                    bucket.clear(maxRetainedBucketSize);
+                                final byte[] seedBytes = seedShape.createBuffer();
+                                for (int refIndex = start + threadNumber; refIndex < end; refIndex += numberOfThreads) {
+                                    final byte[] sequence = referencesDB.getSequence(refIndex);
+                                    final int top = sequence.length - seedShape.getLength() + 1;
+                                    for (int pos = 0; pos < top; pos += stepSize) {
+                                        seedShape.getSeed(sequence, pos, seedBytes);
+                                        if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+                                            final int hashValue = getHash(seedBytes);
+                                            final SeedBucket bucket = myBuckets[hashValue / partitionSize];
+                                            if (fill)
+                                                bucket.add(hashValue, refIndex, pos);
+                                            else
+                                                bucket.add(hashValue);
+                                        } else
+                                            countLowComplexitySeeds[threadNumber]++;
                                     }
-                                    counts[threadNumber]++;
                                 }
+                            } catch (Exception ex) {
+                                Basic.caught(ex);
+                                System.exit(1);
+                            } finally {
+                                seedsLatch.countDown();
                             }
-                            countsForProgress[threadNumber]++;
                         }
-                    } finally {
-                        countDownLatch.countDown();
-                    }
+                    });
                 }
-            });
-        }
+                seedsLatch.await();
+
+                // each thread applies all seeds in its partition:
+                final CountDownLatch applyLatch = new CountDownLatch(numberOfThreads);
+                for (int i = 0; i < numberOfThreads; i++) {
+                    final int partition = i;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                for (int t = 0; t < numberOfThreads; t++) {
+                                    final SeedBucket bucket = buckets[t][partition];
+                                    final int[] data = bucket.data;
+                                    for (int k = 0; k < bucket.size; k += intsPerSeed) {
+                                        final int hashValue = data[k];
+                                        if (fill) {
+                                            final long location = tableIndex[hashValue];
+                                            if (location == -1) {    // has been marked as singleton, so store value directly
+                                                tableIndex[hashValue] = -(((long) data[k + 1] << 32) | data[k + 2]);
+                                            } else if (location > 0) {
+                                                final int length = tableDataPutter.get(location);
+                                                tableDataPutter.put(location, length + 2);
+                                                tableDataPutter.put(location + length + 1, data[k + 1]);
+                                                tableDataPutter.put(location + length + 2, data[k + 2]);
+                                            }
+                                        } else if (tableIndex[hashValue] <= maxHitsPerHash)
+                                            tableIndex[hashValue]++;
+                                    }
+                                    counts[partition] += bucket.size / intsPerSeed;
+                                }
+                            } catch (Exception ex) {
+                                Basic.caught(ex);
+                                System.exit(1);
+                            } finally {
+                                applyLatch.countDown();
+                            }
+                        }
+                    });
+                }
+                applyLatch.await();
 
-        // wait for jobs to complete:
-        while (countDownLatch.getCount() > 0) {
-            try {
-                Thread.sleep(100); // sleep and then report progress
-            } catch (InterruptedException e) {
-                Basic.caught(e);
-                break;
+                progressPercentage.setProgress(end);
+                roundStart = end;
             }
-            progressPercentage.setProgress(Basic.getSum(countsForProgress));
+        } catch (InterruptedException e) {
+            Basic.caught(e);
+        } finally {
+            executor.shutdownNow();
         }
-        progressPercentage.reportTaskCompleted();
+        return Basic.getSum(counts);
+    }
 
-        // shut down threads:
-        executor.shutdownNow();
+    /**
+     * a growable array of ints used to collect the seeds of one partition
+     */
+    private static class SeedBucket {
+        int[] data = new int[1024];
+        int size;
+
+        void add(int a) {
+            if (size + 1 > data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            data[size++] = a;
+        }
 
-        theSize = Basic.getSum(counts);
+        void add(int a, int b, int c) {
+            if (size + 3 > data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            data[size++] = a;
+            data[size++] = b;
+            data[size++] = c;
+        }
+
+        /**
+         * clear the bucket for reuse, trimming it, if its capacity exceeds the given size
+         *
+         * @param maxRetainedSize
+         */
+        void clear(int maxRetainedSize) {
+            size = 0;
+            if (data.length > maxRetainedSize)
+                data = new int[maxRetainedSize];
+        }
     }
 
     /**
@@ -429,7 +928,6 @@ public class ReferencesHashTableBuilder {
 
     /**
      * for a given key, add the reference id and sequence offset to table
-     * uses very naive synchronization
      *
      * @param key
      * @return hash value
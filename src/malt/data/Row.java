@@ -19,8 +19,12 @@
  */
 package malt.data;
 
+import megan.io.IIntGetter;
+
+import java.io.IOException;
+
 /**
- * a row of numbers that are stored in a larger array.
+ * a row of numbers that are stored in a larger array or, without copying, in the data table of an index
  * Daniel Huson, 8.2014
  */
 
@@ -29,7 +33,10 @@ public class Row {
     private int offset;
     private int[] containingArray;
 
-    public int[] tmpArray = new int[10000]; // // todo temporary array used during implementation of memory mapped index
+    private IIntGetter getter; // if set, the row is a view of the table data accessed via this getter
+    private long location; // location of first number in table data
+
+    private final int[] pair = new int[2];
 
     /**
      * constructor
@@ -48,6 +55,19 @@ public class Row {
         this.size = array[offset];
         this.containingArray = array;
         this.offset = offset + 1;
+        this.getter = null;
+    }
+
+    /**
+     * Set the row as a view of the table data, without copying. getter.get(location) must contain size, the numbers follow
+     *
+     * @param getter   table data getter
+     * @param location location of size entry in table data
+     */
+    public void set(IIntGetter getter, long location) throws IOException {
+        this.size = getter.get(location);
+        this.getter = getter;
+        this.location = location + 1;
     }
 
     /**
@@ -59,9 +79,10 @@ public class Row {
     public void setPair(int refId, int position) {
         size = 2;
         offset = 0;
-        tmpArray[0] = refId;
-        tmpArray[1] = position;
-        containingArray = tmpArray;
+        pair[0] = refId;
+        pair[1] = position;
+        containingArray = pair;
+        getter = null;
     }
 
     /**
@@ -86,8 +107,11 @@ public class Row {
      * @param index
      * @return item
      */
-    public int get(int index) {
-        return containingArray[offset + index];
+    public int get(int index) throws IOException {
+        if (getter != null)
+            return getter.get(location + index);
+        else
+            return containingArray[offset + index];
     }
 
     /**
@@ -108,8 +132,12 @@ public class Row {
         if (size > 0) {
             final StringBuilder buf = new StringBuilder();
             buf.append("(").append(size()).append("): ");
-            for (int i = 0; i < size(); i += 2)
-                buf.append(" ").append(get(i)).append("/").append(get(i + 1));
+            try {
+                for (int i = 0; i < size(); i += 2)
+                    buf.append(" ").append(get(i)).append("/").append(get(i + 1));
+            } catch (IOException ex) {
+                buf.append(" ").append(ex.getMessage());
+            }
             return buf.toString();
         } else
             return "null";
@@ -58,6 +58,29 @@ public class SeedMatch {
         }
     };
 
+    static private Comparator<SeedMatch> diagonalComparator = new Comparator<SeedMatch>() {
+        public int compare(SeedMatch a, SeedMatch b) {
+            if (a.rank < b.rank)
+                return -1;
+            else if (a.rank > b.rank)
+                return 1;
+            else if (a.getDiagonal() < b.getDiagonal())
+                return -1;
+            else if (a.getDiagonal() > b.getDiagonal())
+                return 1;
+            else if (a.queryOffset < b.queryOffset)
+                return -1;
+            else if (a.queryOffset > b.queryOffset)
+                return 1;
+            else if (a.seedLength < b.seedLength)
+                return -1;
+            else if (a.seedLength > b.seedLength)
+                return 1;
+            else
+                return 0;
+        }
+    };
+
     /**
      * constructor
      */
@@ -96,6 +119,15 @@ public class SeedMatch {
         return seedLength;
     }
 
+    /**
+     * get the diagonal that this seed lies on
+     *
+     * @return reference offset minus query offset
+     */
+    public int getDiagonal() {
+        return referenceOffset - queryOffset;
+    }
+
     public String toString() {
         return queryOffset + "/" + referenceOffset;
     }
@@ -109,6 +141,15 @@ public class SeedMatch {
         return comparator;
     }
 
+    /**
+     * compare first by frame, then by diagonal and then by query position
+     *
+     * @return comparator
+     */
+    static public Comparator<SeedMatch> getDiagonalComparator() {
+        return diagonalComparator;
+    }
+
     /**
      * determines whether this seed follows the previous one. It is deemed to follow, if on the same diagonal +-3
      *
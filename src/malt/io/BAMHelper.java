@@ -0,0 +1,426 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import jloda.util.BlastMode;
+import malt.data.DNA5;
+import malt.data.ReferencesDBAccess;
+import malt.util.Utilities;
+
+import java.io.IOException;
+
+/**
+ * helps to create BAM records from an alignment. Only used for BlastN alignments, as BAM can't represent protein sequences.
+ * The BAM header lists all references, so the reference index is used as reference id.
+ * Records are created without read name (so that they can be cached for replicate queries) and the name is inserted when writing
+ */
+public class BAMHelper {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    private static final String SEQ_CODES = "=ACMGRSVTWYHKDBN";
+    private static final byte[] BASE2CODE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++)
+            BASE2CODE[i] = 15; // N
+        for (int i = 0; i < SEQ_CODES.length(); i++) {
+            BASE2CODE[SEQ_CODES.charAt(i)] = (byte) i;
+            BASE2CODE[Character.toLowerCase(SEQ_CODES.charAt(i))] = (byte) i;
+        }
+        BASE2CODE['U'] = BASE2CODE['u'] = BASE2CODE['T'];
+    }
+
+    // cigar operations
+    private static final int CIGAR_M = 0;
+    private static final int CIGAR_I = 1;
+    private static final int CIGAR_D = 2;
+    private static final int CIGAR_S = 4;
+    private static final int CIGAR_H = 5;
+
+    /**
+     * creates the binary BAM header, listing all references
+     *
+     * @param mode
+     * @param commandLine
+     * @param referencesDB
+     * @return BAM header
+     */
+    public static byte[] createBAMHeader(BlastMode mode, String commandLine, ReferencesDBAccess referencesDB) throws IOException {
+        final RecordBuffer buffer = new RecordBuffer(1000000);
+        buffer.write(BAM_MAGIC);
+        final byte[] text = SAMHelper.getSAMHeader(mode, commandLine).getBytes();
+        buffer.writeInt32(text.length);
+        buffer.write(text);
+        buffer.writeInt32(referencesDB.getNumberOfSequences());
+        for (int r = 0; r < referencesDB.getNumberOfSequences(); r++) {
+            final byte[] name = Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(r));
+            buffer.writeInt32(name.length + 1);
+            buffer.write(name);
+            buffer.writeByte(0);
+            buffer.writeInt32(referencesDB.getSequenceLength(r));
+        }
+        return buffer.makeCopy();
+    }
+
+    /**
+     * writes a BAM record without read name for a BlastN alignment. The aligned sequences are given as computed by the aligner, that is,
+     * if the query is reverse complemented, then alignedQuery is the reverse complement of the read, as required for BAM
+     *
+     * @param buffer              buffer to write to, is reset first
+     * @param querySequence       query sequence as read, used for soft clipping
+     * @param queryStart          start in aligned orientation (0-based)
+     * @param queryEnd            end in aligned orientation (exclusive)
+     * @param queryLength
+     * @param alignedQuery
+     * @param refIndex
+     * @param referenceStart      start in reference (0-based)
+     * @param alignedReference
+     * @param referenceLength
+     * @param bitScore
+     * @param rawScore
+     * @param expected
+     * @param percentIdentity
+     * @param reverseComplemented
+     * @param qualityValues       quality values as read, or null
+     * @param softClipped
+     */
+    public static void writeBAMRecord(final RecordBuffer buffer, final byte[] querySequence, final int queryStart, final int queryEnd, final int queryLength,
+                                      final byte[] alignedQuery, final int refIndex, final int referenceStart, final byte[] alignedReference, final int referenceLength,
+                                      final double bitScore, final int rawScore, final double expected, final float percentIdentity,
+                                      final boolean reverseComplemented, final byte[] qualityValues, boolean softClipped) {
+        if (querySequence == null)
+            softClipped = false;
+
+        buffer.reset();
+        buffer.writeInt32(0); // block size, set below
+
+        // reference span and cigar length:
+        int referenceSpan = 0;
+        int numberOfCigarOps = 0;
+        {
+            int prevOp = -1;
+            for (int i = 0; i < alignedQuery.length; i++) {
+                final int op = getCigarOp(alignedQuery[i], alignedReference[i]);
+                if (op != CIGAR_I)
+                    referenceSpan++;
+                if (op != prevOp) {
+                    numberOfCigarOps++;
+                    prevOp = op;
+                }
+            }
+        }
+        final int leftClip = queryStart;
+        final int rightClip = queryLength - queryEnd;
+        if (leftClip > 0)
+            numberOfCigarOps++;
+        if (rightClip > 0)
+            numberOfCigarOps++;
+
+        final int sequenceLength = (softClipped ? queryLength : queryEnd - queryStart);
+
+        buffer.writeInt32(refIndex);
+        buffer.writeInt32(referenceStart);
+        buffer.writeByte(1); // empty read name
+        buffer.writeByte(255); // MAPQ unknown
+        buffer.writeUInt16(reg2bin(referenceStart, referenceStart + referenceSpan));
+        buffer.writeUInt16(numberOfCigarOps);
+        buffer.writeUInt16(reverseComplemented ? 0x10 : 0);
+        buffer.writeInt32(sequenceLength);
+        buffer.writeInt32(-1); // next refID
+        buffer.writeInt32(-1); // next pos
+        buffer.writeInt32(0); // template length
+        buffer.writeByte(0); // read name is inserted by appendRecord()
+
+        // cigar:
+        if (leftClip > 0)
+            buffer.writeInt32((leftClip << 4) | (softClipped ? CIGAR_S : CIGAR_H));
+        {
+            int prevOp = -1;
+            int count = 0;
+            for (int i = 0; i < alignedQuery.length; i++) {
+                final int op = getCigarOp(alignedQuery[i], alignedReference[i]);
+                if (op != prevOp) {
+                    if (count > 0)
+                        buffer.writeInt32((count << 4) | prevOp);
+                    prevOp = op;
+                    count = 1;
+                } else
+                    count++;
+            }
+            if (count > 0)
+                buffer.writeInt32((count << 4) | prevOp);
+        }
+        if (rightClip > 0)
+            buffer.writeInt32((rightClip << 4) | (softClipped ? CIGAR_S : CIGAR_H));
+
+        // sequence, 4 bits per base:
+        {
+            int half = -1;
+            if (softClipped) {
+                for (int i = 0; i < queryLength; i++) {
+                    final byte a = (reverseComplemented ? DNA5.getInstance().getBaseComplement(querySequence[queryLength - 1 - i]) : querySequence[i]);
+                    half = writeHalfByte(buffer, half, BASE2CODE[a & 0xff]);
+                }
+            } else {
+                for (byte a : alignedQuery) {
+                    if (a != '-')
+                        half = writeHalfByte(buffer, half, BASE2CODE[a & 0xff]);
+                }
+            }
+            if (half != -1)
+                buffer.writeByte(half << 4);
+        }
+
+        // quality values:
+        if (qualityValues == null) {
+            for (int i = 0; i < sequenceLength; i++)
+                buffer.writeByte(0xff);
+        } else {
+            final int first = (softClipped ? 0 : queryStart);
+            final int last = (softClipped ? queryLength : queryEnd);
+            for (int i = first; i < last; i++)
+                buffer.writeByte((reverseComplemented ? qualityValues[queryLength - (i + 1)] : qualityValues[i]) - 33);
+        }
+
+        // optional fields:
+        writeIntTag(buffer, 'A', 'S', (int) Math.round(bitScore));
+        writeIntTag(buffer, 'N', 'M', computeEditDistance(alignedQuery, alignedReference));
+        writeIntTag(buffer, 'Z', 'L', referenceLength);
+        writeIntTag(buffer, 'Z', 'R', rawScore);
+        buffer.writeByte('Z');
+        buffer.writeByte('E');
+        buffer.writeByte('f');
+        buffer.writeInt32(Float.floatToIntBits((float) expected));
+        writeIntTag(buffer, 'Z', 'I', Math.round(percentIdentity));
+        writeMDTag(buffer, alignedQuery, alignedReference);
+        buffer.writeByte('R');
+        buffer.writeByte('G');
+        buffer.writeByte('Z');
+        buffer.writeByte('1');
+        buffer.writeByte(0);
+
+        buffer.setInt32(0, buffer.length() - 4);
+    }
+
+    /**
+     * append a record created by writeBAMRecord to an output item, inserting the read name
+     *
+     * @param item
+     * @param record
+     * @param readName
+     * @param readNameLength
+     */
+    public static void appendRecord(final OutputItem item, final byte[] record, final byte[] readName, int readNameLength) {
+        readNameLength = Math.min(254, readNameLength);
+        appendInt32(item, record.length - 4 + readNameLength); // block size
+        item.append(record, 4, READ_NAME_LENGTH_OFFSET - 4); // refID and pos
+        item.append((byte) (readNameLength + 1));
+        item.append(record, READ_NAME_LENGTH_OFFSET + 1, READ_NAME_OFFSET - READ_NAME_LENGTH_OFFSET - 1); // remaining fixed fields
+        item.append(readName, 0, readNameLength);
+        item.append(record, READ_NAME_OFFSET, record.length - READ_NAME_OFFSET); // starts with terminating 0 of read name
+    }
+
+    private static final int READ_NAME_LENGTH_OFFSET = 12;
+    private static final int READ_NAME_OFFSET = 36;
+
+    private static void appendInt32(OutputItem item, int value) {
+        item.append((byte) value);
+        item.append((byte) (value >> 8));
+        item.append((byte) (value >> 16));
+        item.append((byte) (value >> 24));
+    }
+
+    /**
+     * get the cigar operation for an alignment column
+     */
+    private static int getCigarOp(byte queryLetter, byte referenceLetter) {
+        if (queryLetter == '-')
+            return CIGAR_D;
+        else if (referenceLetter == '-')
+            return CIGAR_I;
+        else
+            return CIGAR_M;
+    }
+
+    /**
+     * write a 4-bit code. Two codes are packed per byte
+     *
+     * @return pending high half, or -1
+     */
+    private static int writeHalfByte(RecordBuffer buffer, int half, int code) {
+        if (half == -1)
+            return code;
+        buffer.writeByte((half << 4) | code);
+        return -1;
+    }
+
+    /**
+     * write an integer tag
+     */
+    private static void writeIntTag(RecordBuffer buffer, char a, char b, int value) {
+        buffer.writeByte(a);
+        buffer.writeByte(b);
+        buffer.writeByte('i');
+        buffer.writeInt32(value);
+    }
+
+    /**
+     * write the MD tag
+     */
+    private static void writeMDTag(final RecordBuffer buffer, final byte[] alignedQuery, final byte[] alignedReference) {
+        buffer.writeByte('M');
+        buffer.writeByte('D');
+        buffer.writeByte('Z');
+        int countMatches = 0;
+        boolean inDeletion = false;
+        for (int i = 0; i < alignedQuery.length; i++) {
+            if (alignedQuery[i] == '-') { // gap in query
+                if (countMatches > 0) {
+                    buffer.writeNumber(countMatches);
+                    countMatches = 0;
+                }
+                if (!inDeletion) {
+                    buffer.writeByte('^');
+                    inDeletion = true;
+                }
+                buffer.writeByte(alignedReference[i]);
+            } else if (alignedReference[i] != '-') {  // match or mismatch
+                if (alignedQuery[i] == alignedReference[i]) {
+                    countMatches++;
+                } else {
+                    if (inDeletion)
+                        buffer.writeByte('0');
+                    if (countMatches > 0) {
+                        buffer.writeNumber(countMatches);
+                        countMatches = 0;
+                    }
+                    buffer.writeByte(alignedReference[i]);
+                }
+                if (inDeletion)
+                    inDeletion = false;
+            }
+            // else alignedReference[i] == '-': this has no effect
+        }
+        if (countMatches > 0)
+            buffer.writeNumber(countMatches);
+        else if (inDeletion)
+            buffer.writeByte('0');
+        buffer.writeByte(0);
+    }
+
+    /**
+     * compute edit distance from alignment
+     */
+    private static int computeEditDistance(byte[] alignedQuery, byte[] alignedReference) {
+        int distance = 0;
+        for (int i = 0; i < alignedQuery.length; i++) {
+            if (alignedQuery[i] == '-' || alignedReference[i] == '-' || alignedQuery[i] != alignedReference[i])
+                distance++;
+        }
+        return distance;
+    }
+
+    /**
+     * computes the BAM bin for a 0-based interval [beg,end), as specified in the SAM specification
+     */
+    static int reg2bin(int beg, int end) {
+        --end;
+        if (beg >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (beg >> 14);
+        if (beg >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (beg >> 17);
+        if (beg >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (beg >> 20);
+        if (beg >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (beg >> 23);
+        if (beg >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (beg >> 26);
+        return 0;
+    }
+
+    /**
+     * a reusable buffer for writing little-endian binary records
+     */
+    public static class RecordBuffer {
+        private byte[] bytes;
+        private int length;
+
+        public RecordBuffer(int initialCapacity) {
+            bytes = new byte[initialCapacity];
+        }
+
+        public void reset() {
+            length = 0;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        public void writeUInt16(int value) {
+            ensureCapacity(2);
+            bytes[length++] = (byte) value;
+            bytes[length++] = (byte) (value >> 8);
+        }
+
+        public void writeInt32(int value) {
+            ensureCapacity(4);
+            bytes[length++] = (byte) value;
+            bytes[length++] = (byte) (value >> 8);
+            bytes[length++] = (byte) (value >> 16);
+            bytes[length++] = (byte) (value >> 24);
+        }
+
+        public void setInt32(int pos, int value) {
+            bytes[pos] = (byte) value;
+            bytes[pos + 1] = (byte) (value >> 8);
+            bytes[pos + 2] = (byte) (value >> 16);
+            bytes[pos + 3] = (byte) (value >> 24);
+        }
+
+        public void write(byte[] array) {
+            write(array, 0, array.length);
+        }
+
+        public void write(byte[] array, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(array, offset, bytes, length, count);
+            length += count;
+        }
+
+        /**
+         * write the decimal representation of a non-negative number as ASCII
+         */
+        public void writeNumber(int value) {
+            if (value >= 10)
+                writeNumber(value / 10);
+            writeByte('0' + value % 10);
+        }
+
+        public byte[] makeCopy() {
+            final byte[] result = new byte[length];
+            System.arraycopy(bytes, 0, result, 0, length);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                final byte[] tmp = new byte[Math.max(2 * bytes.length, length + extra)];
+                System.arraycopy(bytes, 0, tmp, 0, length);
+                bytes = tmp;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * output stream that writes blocked gzip (BGZF) format, as used by BAM files.
+ * Blocks are compressed in parallel and written in order
+ */
+public class BGZFOutputStream extends ParallelGZIPOutputStream {
+    public static final int MAX_BLOCK_INPUT = 65280; // max uncompressed bytes per block, as used by htslib
+    private static final byte[] EOF_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    /**
+     * constructor
+     *
+     * @param outs            underlying stream
+     * @param numberOfThreads number of threads used for compression
+     * @param level           compression level
+     */
+    public BGZFOutputStream(OutputStream outs, int numberOfThreads, int level) {
+        super(outs, numberOfThreads, level, MAX_BLOCK_INPUT, "BGZF");
+    }
+
+    /**
+     * writes the BGZF end-of-file marker
+     */
+    @Override
+    protected void writeEndOfStream(OutputStream outs) throws IOException {
+        outs.write(EOF_BLOCK);
+    }
+
+    /**
+     * compress a block of data into a single BGZF block
+     */
+    @Override
+    protected byte[] compress(byte[] data, int length, int level) {
+        return compressBlock(data, length, level, true);
+    }
+}
@@ -49,11 +49,13 @@ public class FastAFileIteratorBytes implements Iterator<byte[]>, ICloseableItera
      * constructor
      *
      * @param fileName
+     * @param normalizer
+     * @param numberOfThreads number of threads used to decompress a BGZF file
      * @throws FileNotFoundException
      */
-    public FastAFileIteratorBytes(final String fileName, final INormalizer normalizer) throws IOException {
+    public FastAFileIteratorBytes(final String fileName, final INormalizer normalizer, int numberOfThreads) throws IOException {
         this.normalizer = normalizer;
-        inputStream = new BufferedInputStream(Basic.getInputStreamPossiblyZIPorGZIP(fileName), 8192);
+        inputStream = new BufferedInputStream(ReadAheadInputStream.getInputStreamPossiblyZIPorGZIP(fileName, numberOfThreads), 8192); // decompresses in the background
         maxProgress = Basic.guessUncompressedSizeOfFile(fileName);
 
         try {
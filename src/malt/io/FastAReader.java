@@ -27,6 +27,7 @@ import malt.data.IAlphabet;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -35,6 +36,7 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class FastAReader {
     final public static int BUFFER_SIZE = 8192;
+    final public static int READ_BUFFER_SIZE = 1024 * 1024; // we parse from this buffer rather than calling read() on the stream for every byte
 
     private final IAlphabet alphabet;
 
@@ -44,9 +46,21 @@ public class FastAReader {
     private final BufferedInputStream inputStream;
     private boolean isFastQ = false;
 
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readBufferPos = 0;
+    private int readBufferLength = 0;
+
     private final ProgressPercentage progress;
     private final ReentrantLock lock = new ReentrantLock();
 
+    // used when reading in batches:
+    private final static FastARecordBatch END_OF_INPUT = new FastARecordBatch(0, 0, false);
+    private ArrayBlockingQueue<FastARecordBatch> fullBatches;
+    private ArrayBlockingQueue<FastARecordBatch> freeBatches;
+    private volatile IOException producerException;
+    private Thread producer;
+    private volatile boolean isAborted = false;
+
     /**
      * constructor
      *
@@ -65,6 +79,18 @@ public class FastAReader {
      * @throws java.io.FileNotFoundException
      */
     public FastAReader(final String fileName, final IAlphabet alphabet, final ProgressPercentage progress) throws IOException {
+        this(fileName, alphabet, progress, 1);
+    }
+
+    /**
+     * constructor
+     *
+     * @param fileName
+     * @param progress
+     * @param numberOfThreads number of threads used to decompress BGZF input
+     * @throws java.io.FileNotFoundException
+     */
+    public FastAReader(final String fileName, final IAlphabet alphabet, final ProgressPercentage progress, final int numberOfThreads) throws IOException {
         this.alphabet = alphabet;
 
         maxProgress = Basic.guessUncompressedSizeOfFile(fileName);
@@ -84,7 +110,7 @@ public class FastAReader {
             isFastQ = (value == '@');
             tmp.close();
         }
-        inputStream = new BufferedInputStream(Basic.getInputStreamPossiblyZIPorGZIP(fileName), BUFFER_SIZE);
+        inputStream = new BufferedInputStream(ReadAheadInputStream.getInputStreamPossiblyZIPorGZIP(fileName, numberOfThreads), BUFFER_SIZE); // decompresses in the background
     }
 
     /**
@@ -97,6 +123,8 @@ public class FastAReader {
      * @throws IOException
      */
     public boolean readAsFastA(FastARecord fastARecord) throws IOException {
+        if (isAborted)
+            return false;
         lock.lock();
         try {
             if (isFastQ) { // expect four lines per read
@@ -123,7 +151,7 @@ public class FastAReader {
                 int value;
                 int length = 0;
                 while (true) {
-                    value = inputStream.read();
+                    value = read();
                     position++;
                     if (Character.isWhitespace(value))
                         continue;  // skip white space
@@ -150,6 +178,133 @@ public class FastAReader {
         }
     }
 
+    /**
+     * starts a thread that reads all records and places them in batches. Workers then claim whole batches
+     * using takeBatch() and must return them using recycleBatch(). Records are numbered by the reader thread, so ranks are
+     * the same as when using readAsFastA()
+     *
+     * @param batchSize         number of records per batch
+     * @param numberOfBatches   number of batches in circulation
+     * @param wantQualityValues keep quality values?
+     */
+    public void startBatchProducer(final int batchSize, final int numberOfBatches, final boolean wantQualityValues) {
+        startBatchProducer(batchSize, numberOfBatches, wantQualityValues, false);
+    }
+
+    /**
+     * starts a thread that reads all records and places them in batches. Workers then claim whole batches
+     * using takeBatch() and must return them using recycleBatch(). Records are numbered by the reader thread, so ranks are
+     * the same as when using readAsFastA()
+     *
+     * @param batchSize           number of input records per batch
+     * @param numberOfBatches     number of batches in circulation
+     * @param wantQualityValues   keep quality values?
+     * @param collapseDuplicates  attach records whose sequence already occurs in the same batch to the first such record as duplicates
+     */
+    public void startBatchProducer(final int batchSize, final int numberOfBatches, final boolean wantQualityValues, final boolean collapseDuplicates) {
+        fullBatches = new ArrayBlockingQueue<>(numberOfBatches + 1); // +1 for end of input
+        freeBatches = new ArrayBlockingQueue<>(numberOfBatches);
+        for (int i = 0; i < numberOfBatches; i++)
+            freeBatches.add(new FastARecordBatch(batchSize, 1024, wantQualityValues));
+
+        producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!isAborted) {
+                        final FastARecordBatch batch = freeBatches.take();
+                        batch.clear();
+                        int count = 0;
+                        if (collapseDuplicates) {
+                            while (count < batch.capacity() && readAsFastA(batch.getSpare())) {
+                                batch.addSpareCollapsingDuplicates();
+                                count++;
+                            }
+                        } else {
+                            while (batch.size < batch.capacity() && readAsFastA(batch.get(batch.size))) {
+                                batch.size++;
+                            }
+                            count = batch.size;
+                        }
+                        if (batch.size > 0)
+                            fullBatches.put(batch);
+                        if (count < batch.capacity())
+                            break; // no more input
+                    }
+                } catch (IOException ex) {
+                    producerException = ex;
+                } catch (InterruptedException ex) {
+                    if (!isAborted)
+                        Basic.caught(ex);
+                } finally {
+                    try {
+                        if (isAborted)
+                            fullBatches.offer(END_OF_INPUT); // abort() has already provided one
+                        else
+                            fullBatches.put(END_OF_INPUT);
+                    } catch (InterruptedException ex) {
+                        Basic.caught(ex);
+                    }
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * stop reading, e.g. because a worker thread has failed. After this, no more records or batches are handed out
+     */
+    public void abort() {
+        isAborted = true;
+        if (producer != null)
+            producer.interrupt();
+        if (fullBatches != null)
+            fullBatches.offer(END_OF_INPUT); // wake up waiting workers
+    }
+
+    /**
+     * are we reading in batches?
+     *
+     * @return true, if startBatchProducer() has been called
+     */
+    public boolean isUsingBatches() {
+        return fullBatches != null;
+    }
+
+    /**
+     * get the next batch of records. This method is thread safe
+     *
+     * @return next batch or null, if no more input
+     * @throws IOException
+     */
+    public FastARecordBatch takeBatch() throws IOException {
+        try {
+            final FastARecordBatch batch = fullBatches.take();
+            if (isAborted) {
+                fullBatches.offer(END_OF_INPUT); // make sure that all other workers also see the end of input
+                return null;
+            }
+            if (batch == END_OF_INPUT) {
+                fullBatches.put(END_OF_INPUT); // put back so that all other workers also see the end of input
+                if (producerException != null)
+                    throw producerException;
+                return null;
+            }
+            return batch;
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * return a batch to the reader thread after all its records have been processed
+     *
+     * @param batch
+     */
+    public void recycleBatch(FastARecordBatch batch) {
+        freeBatches.add(batch);
+    }
+
     /**
      * reads the header line
      *
@@ -158,14 +313,14 @@ public class FastAReader {
      */
     private void readHeader(FastARecord fastARecord) throws IOException {
         byte[] aline = fastARecord.header;
-        int value = inputStream.read();
+        int value = read();
         position++;
         int length = 0;
         while (value != '\r' && value != '\n' && value != -1) {
             if (length == 0 && isFastQ)
                 value = '>';
             aline[length++] = (byte) value;
-            value = inputStream.read();
+            value = read();
             position++;
             if (length >= aline.length) {  // need to grow buffer
                 aline = fastARecord.header = grow(aline);
@@ -183,12 +338,12 @@ public class FastAReader {
      */
     private void readSequence(FastARecord fastARecord) throws IOException {
         byte[] aline = fastARecord.sequence;
-        int value = inputStream.read();
+        int value = read();
         position++;
         int length = 0;
         while (value != '\r' && value != '\n' && value != -1) {
             aline[length++] = alphabet.getNormalized((byte) value);
-            value = inputStream.read();
+            value = read();
             position++;
             if (length >= aline.length) {  // need to grow buffer
                 aline = fastARecord.sequence = grow(aline);
@@ -207,12 +362,12 @@ public class FastAReader {
      */
     private int readQualityValues(FastARecord fastARecord) throws IOException {
         byte[] aline = fastARecord.qualityValues;
-        int value = inputStream.read();
+        int value = read();
         position++;
         int length = 0;
         while (value != '\r' && value != '\n' && value != -1) {
             aline[length++] = (byte) value;
-            value = inputStream.read();
+            value = read();
             position++;
             if (length >= aline.length) {  // need to grow buffer
                 aline = fastARecord.qualityValues = grow(aline);
@@ -234,16 +389,34 @@ public class FastAReader {
         return result;
     }
 
+    /**
+     * reads the next byte from the read buffer, refilling it from the input stream when necessary
+     *
+     * @return next byte or -1
+     * @throws IOException
+     */
+    private int read() throws IOException {
+        if (readBufferPos == readBufferLength) {
+            readBufferPos = 0;
+            readBufferLength = inputStream.read(readBuffer, 0, readBuffer.length);
+            if (readBufferLength <= 0) {
+                readBufferLength = 0;
+                return -1;
+            }
+        }
+        return readBuffer[readBufferPos++] & 0xFF;
+    }
+
     /**
      * skip the current line
      *
      * @throws java.io.IOException
      */
     private void skipLine() throws IOException {
-        int value = inputStream.read();
+        int value = read();
         position++;
         while (value != '\r' && value != '\n' && value != -1) {
-            value = inputStream.read();
+            value = read();
             position++;
         }
     }
@@ -35,6 +35,9 @@ public class FastARecord {
 
     byte[] qualityValues;
 
+    private FastARecord[] duplicates; // records with the same sequence that were collapsed onto this one
+    private int numberOfDuplicates;
+
     /**
      * constructor
      */
@@ -136,4 +139,48 @@ public class FastARecord {
     public boolean isWantQualityValues() {
         return qualityValues != null;
     }
+
+    /**
+     * get the number of records with the same sequence that have been collapsed onto this one
+     *
+     * @return number of duplicates
+     */
+    public int getNumberOfDuplicates() {
+        return numberOfDuplicates;
+    }
+
+    /**
+     * get the i-th duplicate
+     *
+     * @param i
+     * @return duplicate record
+     */
+    public FastARecord getDuplicate(int i) {
+        return duplicates[i];
+    }
+
+    /**
+     * add a record with the same sequence
+     *
+     * @param duplicate
+     */
+    void addDuplicate(FastARecord duplicate) {
+        if (duplicates == null)
+            duplicates = new FastARecord[4];
+        else if (numberOfDuplicates == duplicates.length) {
+            final FastARecord[] tmp = new FastARecord[2 * numberOfDuplicates];
+            System.arraycopy(duplicates, 0, tmp, 0, numberOfDuplicates);
+            duplicates = tmp;
+        }
+        duplicates[numberOfDuplicates++] = duplicate;
+    }
+
+    /**
+     * remove all duplicates
+     */
+    void clearDuplicates() {
+        for (int i = 0; i < numberOfDuplicates; i++)
+            duplicates[i] = null;
+        numberOfDuplicates = 0;
+    }
 }
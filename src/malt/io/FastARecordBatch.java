@@ -0,0 +1,160 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import jloda.thirdparty.MurmurHash3;
+
+/**
+ * a batch of consecutive fastA records, filled by the reader thread and claimed as a whole by a worker thread.
+ * Records are reused once the batch has been recycled.
+ * When collapsing duplicates, a record whose sequence already occurs in the batch is attached to the first such record as a duplicate
+ */
+public class FastARecordBatch {
+    private final FastARecord[] records;
+    int size;
+
+    // used when collapsing duplicates:
+    private final int initialLength;
+    private final boolean wantQualityValues;
+    private FastARecord spare; // record into which the next input record is read
+    private FastARecord[] duplicatePool = new FastARecord[0];
+    private int duplicatePoolSize = 0;
+    private int[] hashes;
+    private int[] hashTable; // maps hash to index+1 of record, 0 means empty
+    private int hashMask;
+
+    /**
+     * constructor
+     *
+     * @param batchSize
+     * @param initialLength
+     * @param wantQualityValues
+     */
+    FastARecordBatch(int batchSize, int initialLength, boolean wantQualityValues) {
+        records = new FastARecord[batchSize];
+        for (int i = 0; i < batchSize; i++)
+            records[i] = FastAReader.createFastARecord(initialLength, wantQualityValues);
+        this.initialLength = initialLength;
+        this.wantQualityValues = wantQualityValues;
+    }
+
+    /**
+     * number of records in this batch
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * maximum number of records in this batch
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return records.length;
+    }
+
+    /**
+     * get the i-th record
+     *
+     * @param i
+     * @return record
+     */
+    public FastARecord get(int i) {
+        return records[i];
+    }
+
+    /**
+     * empty the batch, including all duplicates
+     */
+    void clear() {
+        for (int i = 0; i < size; i++)
+            records[i].clearDuplicates();
+        if (hashTable != null) {
+            for (int i = 0; i < size; i++) {
+                int slot = hashes[i] & hashMask;
+                while (hashTable[slot] != 0) {
+                    hashTable[slot] = 0;
+                    slot = (slot + 1) & hashMask;
+                }
+            }
+        }
+        size = 0;
+        duplicatePoolSize = 0;
+    }
+
+    /**
+     * get the record into which the next input record should be read, before calling addSpareCollapsingDuplicates()
+     *
+     * @return spare record
+     */
+    FastARecord getSpare() {
+        if (spare == null)
+            spare = FastAReader.createFastARecord(initialLength, wantQualityValues);
+        return spare;
+    }
+
+    /**
+     * add the spare record to the batch. If its sequence equals that of a record already in the batch, it is added to that record as a duplicate
+     */
+    void addSpareCollapsingDuplicates() {
+        if (hashTable == null) {
+            int tableSize = 1024;
+            while (tableSize < 2 * records.length)
+                tableSize *= 2;
+            hashTable = new int[tableSize];
+            hashMask = tableSize - 1;
+            hashes = new int[records.length];
+        }
+        final FastARecord record = spare;
+        final int hash = MurmurHash3.murmurhash3x8632(record.sequence, 0, record.sequenceLength, 666);
+        int slot = hash & hashMask;
+        while (hashTable[slot] != 0) {
+            final int index = hashTable[slot] - 1;
+            if (hashes[index] == hash && equalSequences(records[index], record)) {
+                if (duplicatePoolSize == duplicatePool.length) {
+                    final FastARecord[] tmp = new FastARecord[Math.max(16, 2 * duplicatePoolSize)];
+                    System.arraycopy(duplicatePool, 0, tmp, 0, duplicatePoolSize);
+                    duplicatePool = tmp;
+                }
+                spare = duplicatePool[duplicatePoolSize]; // reuse a pooled record, if available
+                duplicatePool[duplicatePoolSize++] = record;
+                records[index].addDuplicate(record);
+                return;
+            }
+            slot = (slot + 1) & hashMask;
+        }
+        hashTable[slot] = size + 1;
+        hashes[size] = hash;
+        spare = records[size];
+        records[size++] = record;
+    }
+
+    /**
+     * do the two records have the same sequence?
+     */
+    private static boolean equalSequences(FastARecord a, FastARecord b) {
+        if (a.sequenceLength != b.sequenceLength)
+            return false;
+        for (int i = 0; i < a.sequenceLength; i++) {
+            if (a.sequence[i] != b.sequence[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -24,27 +24,42 @@ import jloda.util.Basic;
 import java.io.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 /**
- * writes byte strings to a file in increasing order of rank
+ * writes byte strings to a file in increasing order of rank.
+ * Items are published into a ring buffer at slot rank modulo capacity and a single consumer thread writes them in order.
+ * A worker whose slot is not yet free parks until the consumer frees it.
+ * Output items are pooled per thread and recycled once they have been written
  * Daniel Huson, 8.2014
  */
 public class FileWriterRanked {
-    final public static int QUEUE_LENGTH = 1000000;
+    final public static int RING_CAPACITY = (1 << 16); // must be a power of 2
+    final private static int RING_MASK = RING_CAPACITY - 1;
+    final private static int RECYCLED_ITEMS_PER_THREAD = 1024;
+    final private static int MAX_RECYCLED_ITEM_CAPACITY = 1024 * 1024; // don't keep very large items around
 
-    private final static OutputItem SENTINEL = new OutputItem(0, null);
-
-    private final ArrayBlockingQueue<OutputItem> outputQueue;
-    private final ArrayBlockingQueue<OutputItem>[] threadSpecificWaitQueues;
-    private final Writer writer;
+    private final AtomicReferenceArray<OutputItem> ring;
+    private final ArrayBlockingQueue<OutputItem>[] threadSpecificRecycledItems;
+    private final OutputStream outs;
     private final boolean isFile;
     private final StringBuilder fileFooter;
 
-    private long nextRank;
-    private boolean isClosing = false;
+    private volatile long nextRank; // next rank to be written, only modified by the consumer
+    private volatile long consumerWaitingForRank = -1; // rank that the parked consumer is waiting for, or -1
+    private volatile boolean isClosing = false;
+    private volatile boolean isAborted = false;
     private final CountDownLatch hasFinishedOutput = new CountDownLatch(1);
+    private final Thread consumer;
 
-    private int queueHighWaterMark = 0;
+    // workers parked because their slot is not yet free, indexed by thread id:
+    private final AtomicReferenceArray<Thread> waitingProducers;
+    private final AtomicLongArray waitingProducerRanks; // rank that a parked worker wants to write, or -1
+    private final AtomicInteger numberOfWaitingProducers = new AtomicInteger();
 
     /**
      * constructor
@@ -54,100 +69,84 @@ public class FileWriterRanked {
      * @throws java.io.IOException
      */
     public FileWriterRanked(String fileName, final int numberOfThreads, int smallestRank) throws IOException {
-        // one wait queue for each thread:
-        threadSpecificWaitQueues = new ArrayBlockingQueue[numberOfThreads];
-        for (int i = 0; i < threadSpecificWaitQueues.length; i++)
-            threadSpecificWaitQueues[i] = new ArrayBlockingQueue<>(QUEUE_LENGTH);
-        // the output queue:
-        outputQueue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+        this(fileName, numberOfThreads, smallestRank, 1, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * constructor
+     *
+     * @param fileName
+     * @param smallestRank value of first byte string to be written
+     * @param gzipThreads  number of threads used to compress, if file name ends on .gz
+     * @param gzipLevel    compression level, if file name ends on .gz
+     * @throws java.io.IOException
+     */
+    public FileWriterRanked(String fileName, final int numberOfThreads, int smallestRank, int gzipThreads, int gzipLevel) throws IOException {
+        this((fileName == null || fileName.equalsIgnoreCase("STDOUT") ? System.out : ParallelGZIPOutputStream.getOutputStreamPossiblyZIPorGZIP(fileName, gzipThreads, gzipLevel)),
+                fileName != null && !fileName.equalsIgnoreCase("STDOUT"), numberOfThreads, smallestRank);
+    }
 
-        // the output writer:
-        OutputStream outs;
-        if (fileName == null || fileName.equalsIgnoreCase("STDOUT")) {
-            isFile = false;
-            outs = System.out;
-        } else {
-            isFile = true;
-            outs = Basic.getOutputStreamPossiblyZIPorGZIP(fileName);
+    /**
+     * constructor
+     *
+     * @param outputStream the stream to write to, e.g. a ParallelGZIPOutputStream
+     * @param isFile       close the stream when done?
+     * @param smallestRank value of first byte string to be written
+     */
+    public FileWriterRanked(OutputStream outputStream, boolean isFile, final int numberOfThreads, int smallestRank) {
+        ring = new AtomicReferenceArray<>(RING_CAPACITY);
+
+        // one pool of recycled items for each thread:
+        threadSpecificRecycledItems = new ArrayBlockingQueue[numberOfThreads];
+        for (int i = 0; i < threadSpecificRecycledItems.length; i++) {
+            threadSpecificRecycledItems[i] = new ArrayBlockingQueue<>(RECYCLED_ITEMS_PER_THREAD);
         }
-        writer = new BufferedWriter(new OutputStreamWriter(outs), 10 * 1024 * 1024); // ten megabyte buffer, not sure whether this makes a difference
+        waitingProducers = new AtomicReferenceArray<>(numberOfThreads);
+        waitingProducerRanks = new AtomicLongArray(numberOfThreads);
+        for (int i = 0; i < numberOfThreads; i++)
+            waitingProducerRanks.set(i, -1);
+
+        // the output stream:
+        this.isFile = isFile;
+        outs = new BufferedOutputStream(outputStream, 10 * 1024 * 1024); // ten megabyte buffer, not sure whether this makes a difference
 
         fileFooter = new StringBuilder();
         nextRank = smallestRank;
 
-        // this thread collects output items in order from thread-specific waiting queues and places them on the output queue
-        final Thread thread1 = new Thread(new Runnable() {
+        // this thread takes the items from the ring in order of rank and writes them to the output stream
+        consumer = new Thread(new Runnable() {
             public void run() {
                 try {
-                    while (true) {
-                        boolean allEmpty = true;
-                        for (ArrayBlockingQueue<OutputItem> queue : threadSpecificWaitQueues) {
-                            OutputItem item = queue.peek();
-                            while (item != null && item.rank == nextRank) {
-                                if (allEmpty) {
-                                    allEmpty = false;
-                                    if (queue.size() > queueHighWaterMark)
-                                        queueHighWaterMark = queue.size();
-                                }
-                                try {
-                                    outputQueue.put(item);
-                                } catch (InterruptedException e) {
-                                    Basic.caught(e);
-                                }
-                                nextRank++;
-                                item = queue.poll(); // don't use take(), don't want to block here...
-                            }
-                        }
-                        if (allEmpty) {
-                            if (isClosing) {
-                                outputQueue.put(SENTINEL);
-                                return;
-                            } else
-                                try {
-                                    Thread.sleep(1);
-                                } catch (InterruptedException e) {
-                                    Basic.caught(e);
-                                }
-                        }
-                    }
-                } catch (InterruptedException ex) {
-                    Basic.caught(ex);
-                }
-            }
-        });
-        thread1.start();
-
-        // this thread writes output to file
-        final Thread thread2 = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    while (true) {
-                        OutputItem item = outputQueue.take();
-                        if (item == SENTINEL) {
-                            hasFinishedOutput.countDown();
-                            return;
-                        }
-                        byte[][] strings = item.strings;
-                        if (strings != null) {
-                            for (byte[] string : strings) {
-                                byte b = 0;
-                                for (byte aString : string) {
-                                    b = aString;
-                                    if (b == 0)
-                                        break; // zero-terminated byte string
-                                    writer.write((char) b);
-                                }
-                                if (b != '\t') // if this ends on a tab, don't add new line, it is the query-name for BlastTab or SAM
-                                    writer.write('\n');
-                            }
+                    long rank = nextRank;
+                    while (!isAborted) {
+                        final int slot = (int) (rank & RING_MASK);
+                        final OutputItem item = ring.get(slot);
+                        if (item != null) {
+                            ring.set(slot, null);
+                            nextRank = ++rank; // frees the slot for a producer waiting on rank+RING_CAPACITY
+                            if (numberOfWaitingProducers.get() > 0)
+                                unparkProducers(rank);
+                            if (item.length > 0)
+                                outs.write(item.bytes, 0, item.length);
+                            recycle(item);
+                        } else if (isClosing) { // all ranks have been published before close() was called
+                            if (ring.get(slot) == null)
+                                break;
+                        } else {
+                            consumerWaitingForRank = rank;
+                            if (ring.get(slot) == null && !isClosing && !isAborted) // check again, producer might have published in the meantime
+                                LockSupport.park(this);
+                            consumerWaitingForRank = -1;
                         }
                     }
                 } catch (Exception ex) {
                     Basic.caught(ex);
+                } finally {
+                    hasFinishedOutput.countDown();
                 }
             }
         });
-        thread2.start();
+        consumer.start();
     }
 
     /**
@@ -157,56 +156,117 @@ public class FileWriterRanked {
      */
     public void close() throws IOException {
         isClosing = true;
+        LockSupport.unpark(consumer);
         try {
             hasFinishedOutput.await();
         } catch (InterruptedException e) {
             Basic.caught(e);
         }
-        if (fileFooter.length() > 0)
-            writer.write(fileFooter.toString());
-        writer.flush();
+        if (fileFooter.length() > 0 && !isAborted)
+            outs.write(fileFooter.toString().getBytes());
+        outs.flush();
         if (isFile)
-            writer.close();
-        /*
-        if (queueHighWaterMark > 1) {
-            System.err.println("(outputQueueHighWaterMark: " + queueHighWaterMark+")");
+            outs.close();
+    }
+
+    /**
+     * abort writing, e.g. because a worker thread has failed and not all ranks will be written. Items not yet written are
+     * discarded and workers waiting for a free slot return immediately. The writer must still be closed
+     */
+    public void abort() {
+        isAborted = true;
+        LockSupport.unpark(consumer);
+        for (int t = 0; t < waitingProducers.length(); t++) {
+            final Thread producer = waitingProducers.get(t);
+            if (producer != null)
+                LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * unpark all parked workers whose slot has become free
+     *
+     * @param nextRank next rank to be written
+     */
+    private void unparkProducers(long nextRank) {
+        for (int t = 0; t < waitingProducers.length(); t++) {
+            final long rank = waitingProducerRanks.get(t);
+            if (rank != -1 && rank - nextRank < RING_CAPACITY)
+                LockSupport.unpark(waitingProducers.get(t));
         }
-        */
+    }
+
+    /**
+     * get an empty output item for the given thread. Items are recycled after they have been written
+     *
+     * @param threadId
+     * @return empty item
+     */
+    public OutputItem obtainItem(int threadId) {
+        final OutputItem item = threadSpecificRecycledItems[threadId].poll();
+        if (item != null)
+            return item;
+        else
+            return new OutputItem(threadId, 1024);
+    }
+
+    /**
+     * Write an output item by rank. By rank means that output is generated only when all output of lower output
+     * has already been written. The item is owned by the writer after this call and must not be modified
+     *
+     * @param rank each call must have a different rank and no rank can be skipped
+     * @param item obtained from obtainItem(threadId)
+     */
+    public void writeByRank(int threadId, long rank, OutputItem item) {
+        item.rank = rank;
+        if (rank - nextRank >= RING_CAPACITY) { // ring is full up to this rank, wait for consumer to catch up
+            waitingProducers.set(threadId, Thread.currentThread());
+            waitingProducerRanks.set(threadId, rank);
+            numberOfWaitingProducers.incrementAndGet();
+            while (rank - nextRank >= RING_CAPACITY && !isAborted) // check again after registering, consumer might have freed the slot in the meantime
+                LockSupport.park(this);
+            waitingProducerRanks.set(threadId, -1);
+            numberOfWaitingProducers.decrementAndGet();
+            if (isAborted)
+                return;
+        }
+        ring.set((int) (rank & RING_MASK), item);
+        if (consumerWaitingForRank == rank)
+            LockSupport.unpark(consumer);
     }
 
     /**
      * Write byte strings to the out stream by rank.
      * By rank means that output is generated only when all output of lower output
      * has already been written
-     * Does not make a copy of the byte arrays, so shouldn't recycle because unclear when this will be written
-     * Then must not be overwritten
+     * The byte strings are copied, so the caller may reuse them
      *
      * @param rank    each call must have a different rank and no rank can be skipped
      * @param strings can be null
      */
     public void writeByRank(int threadId, long rank, byte[][] strings) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, strings));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
+        final OutputItem item = obtainItem(threadId);
+        if (strings != null) {
+            for (byte[] string : strings)
+                item.appendLine(string);
         }
+        writeByRank(threadId, rank, item);
     }
 
     /**
      * write a header and body by rank. By rank means that output is generated only when all output of lower output
      * has already been written
-     * Does not make a copy of the byte arrays, so shouldn't recycle because unclear when this will be written
+     * The byte strings are copied, so the caller may reuse them
      *
      * @param rank
      * @param header
      * @param body
      */
     public void writeByRank(int threadId, long rank, byte[] header, byte[] body) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, new byte[][]{header, body}));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
-        }
+        final OutputItem item = obtainItem(threadId);
+        item.appendLine(header);
+        item.appendLine(body);
+        writeByRank(threadId, rank, item);
     }
 
     /**
@@ -215,10 +275,18 @@ public class FileWriterRanked {
      * @param rank
      */
     public void skipByRank(int threadId, int rank) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, null));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
+        writeByRank(threadId, rank, obtainItem(threadId));
+    }
+
+    /**
+     * return an item that has been written to the pool of its thread
+     *
+     * @param item
+     */
+    private void recycle(OutputItem item) {
+        if (item.threadId >= 0 && item.bytes.length <= MAX_RECYCLED_ITEM_CAPACITY) {
+            item.clear();
+            threadSpecificRecycledItems[item.threadId].offer(item); // if pool is full, item is dropped
         }
     }
 
@@ -229,7 +297,17 @@ public class FileWriterRanked {
      * @throws java.io.IOException
      */
     public void writeFirst(String string) throws IOException {
-        writer.write(string);
+        outs.write(string.getBytes());
+    }
+
+    /**
+     * write these bytes at the top of the file
+     *
+     * @param bytes
+     * @throws java.io.IOException
+     */
+    public void writeFirst(byte[] bytes) throws IOException {
+        outs.write(bytes);
     }
 
     /**
@@ -243,24 +321,3 @@ public class FileWriterRanked {
     }
 }
 
-/**
- * output item consists of rank and bytes to write
- */
-class OutputItem {
-    long rank;
-    byte[][] strings;
-
-    OutputItem(long rank, byte[][] strings) {
-        this.rank = rank;
-        this.strings = strings;
-    }
-
-    public String toString() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("rank=").append(this.rank);
-        if (strings != null) {
-            for (byte[] string : strings) buf.append(Basic.toString(string));
-        }
-        return buf.toString();
-    }
-}
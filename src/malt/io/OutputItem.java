@@ -0,0 +1,144 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import jloda.util.Basic;
+
+/**
+ * output item consists of rank and the bytes to write. Items are obtained from a FileWriterRanked,
+ * filled by a worker thread and recycled by the writer once they have been written
+ */
+public class OutputItem {
+    long rank;
+    final int threadId;
+    byte[] bytes;
+    int length;
+
+    /**
+     * constructor
+     *
+     * @param threadId        thread to whose pool this item is returned, or -1
+     * @param initialCapacity
+     */
+    OutputItem(int threadId, int initialCapacity) {
+        this.threadId = threadId;
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * append a byte string that is terminated either by its end or by a 0. A new line is added,
+     * unless the string ends on a tab (as the query-name for BlastTab or SAM does)
+     *
+     * @param string
+     */
+    public void appendLine(byte[] string) {
+        int top = 0;
+        while (top < string.length && string[top] != 0)
+            top++;
+        append(string, 0, top);
+        if (top == 0 || top < string.length || string[top - 1] != '\t')
+            append((byte) '\n');
+    }
+
+    /**
+     * append all bytes
+     *
+     * @param string
+     */
+    public void append(byte[] string) {
+        append(string, 0, string.length);
+    }
+
+    /**
+     * append bytes
+     *
+     * @param string
+     * @param offset
+     * @param count
+     */
+    public void append(byte[] string, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(string, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * append a single byte
+     *
+     * @param b
+     */
+    public void append(byte b) {
+        ensureCapacity(1);
+        bytes[length++] = b;
+    }
+
+    /**
+     * append the decimal representation of a number
+     *
+     * @param value
+     */
+    public void appendNumber(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        final int start = length;
+        do {
+            bytes[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) { // digits were written in reverse order
+            final byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+    }
+
+    /**
+     * number of bytes in this item
+     *
+     * @return length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * erase the content
+     */
+    void clear() {
+        length = 0;
+    }
+
+    /**
+     * ensure that there is space for the given number of additional bytes
+     *
+     * @param extra
+     */
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            final byte[] tmp = new byte[Math.max(2 * bytes.length, length + extra)];
+            System.arraycopy(bytes, 0, tmp, 0, length);
+            bytes = tmp;
+        }
+    }
+
+    public String toString() {
+        return "rank=" + rank + Basic.toString(bytes, 0, length);
+    }
+}
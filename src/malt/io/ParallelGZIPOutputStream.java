@@ -0,0 +1,275 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import jloda.util.Basic;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * output stream that writes gzip format, compressing blocks of data in parallel, like pigz.
+ * Each block is written as a separate gzip member, in order, so the output can be read by any gzip reader
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_INPUT = 1024 * 1024; // large blocks, so that splitting into members costs almost nothing
+    private static final int HEADER_LENGTH = 10;
+    private static final int FOOTER_LENGTH = 8;
+
+    private final OutputStream outs;
+    private final int level;
+    private final int maxBlockInput;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<>();
+
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+    private boolean hasSubmittedBlock = false;
+
+    /**
+     * constructor
+     *
+     * @param outs            underlying stream
+     * @param numberOfThreads number of threads used for compression
+     * @param level           compression level
+     */
+    public ParallelGZIPOutputStream(OutputStream outs, int numberOfThreads, int level) {
+        this(outs, numberOfThreads, level, DEFAULT_BLOCK_INPUT, "GZIP");
+    }
+
+    /**
+     * constructor
+     *
+     * @param outs            underlying stream
+     * @param numberOfThreads number of threads used for compression
+     * @param level           compression level
+     * @param maxBlockInput   max number of uncompressed bytes per block
+     * @param threadName      name of compression threads
+     */
+    protected ParallelGZIPOutputStream(OutputStream outs, int numberOfThreads, int level, int maxBlockInput, final String threadName) {
+        this.outs = outs;
+        this.level = level;
+        this.maxBlockInput = maxBlockInput;
+        this.block = new byte[maxBlockInput];
+        this.executor = Executors.newFixedThreadPool(Math.max(1, numberOfThreads), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.maxPendingBlocks = 4 * Math.max(1, numberOfThreads);
+    }
+
+    /**
+     * opens an output stream for the named file. If the file ends on .gz, then the output is compressed using
+     * a parallel gzip stream, otherwise handled as by Basic.getOutputStreamPossiblyZIPorGZIP
+     *
+     * @param fileName
+     * @param numberOfThreads number of threads used for gzip compression
+     * @param level           gzip compression level
+     * @return output stream
+     */
+    public static OutputStream getOutputStreamPossiblyZIPorGZIP(String fileName, int numberOfThreads, int level) throws IOException {
+        if (fileName.toLowerCase().endsWith(".gz"))
+            return new ParallelGZIPOutputStream(new FileOutputStream(fileName), numberOfThreads, level);
+        else
+            return Basic.getOutputStreamPossiblyZIPorGZIP(fileName);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == maxBlockInput)
+            submitBlock();
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == maxBlockInput)
+                submitBlock();
+            final int count = Math.min(length, maxBlockInput - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * compresses and writes all data written so far. Ends the current block
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0)
+            submitBlock();
+        writeCompletedBlocks(0);
+        outs.flush();
+    }
+
+    /**
+     * compresses and writes all data written so far, but does not close the underlying stream. After this,
+     * the underlying stream can be used to append further data, e.g. additional gzip members
+     */
+    public void finish() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                flush();
+                writeEndOfStream(outs);
+                outs.flush();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * writes all remaining data and closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            outs.close();
+        }
+    }
+
+    /**
+     * write anything that must follow the last block. If no data was written, writes an empty member,
+     * because a gzip file must contain at least one member
+     *
+     * @param outs
+     */
+    protected void writeEndOfStream(OutputStream outs) throws IOException {
+        if (!hasSubmittedBlock)
+            outs.write(compressBlock(new byte[0], 0, level, false));
+    }
+
+    /**
+     * compress a block of data
+     *
+     * @param data
+     * @param length
+     * @param level
+     * @return compressed block
+     */
+    protected byte[] compress(byte[] data, int length, int level) {
+        return compressBlock(data, length, level, false);
+    }
+
+    /**
+     * submit the current block for compression
+     */
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        hasSubmittedBlock = true;
+        pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return compress(data, length, level);
+            }
+        }));
+        block = new byte[maxBlockInput];
+        blockLength = 0;
+        writeCompletedBlocks(maxPendingBlocks);
+    }
+
+    /**
+     * write compressed blocks in order. Waits for blocks to be completed while there are more than maxPending
+     *
+     * @param maxPending
+     */
+    private void writeCompletedBlocks(int maxPending) throws IOException {
+        while (pendingBlocks.size() > 0 && (pendingBlocks.size() > maxPending || pendingBlocks.getFirst().isDone())) {
+            try {
+                outs.write(pendingBlocks.removeFirst().get());
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * compress a block of data into a single gzip member
+     *
+     * @param data
+     * @param length
+     * @param level
+     * @param bgzf   add the BGZF extra field that records the block size?
+     * @return gzip member
+     */
+    static byte[] compressBlock(byte[] data, int length, int level, boolean bgzf) {
+        final int headerLength = (bgzf ? HEADER_LENGTH + 8 : HEADER_LENGTH);
+        final Deflater deflater = new Deflater(level, true);
+        byte[] buffer = new byte[headerLength + length + length / 1000 + 64 + FOOTER_LENGTH];
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            compressedLength += deflater.deflate(buffer, headerLength + compressedLength, buffer.length - headerLength - FOOTER_LENGTH - compressedLength);
+            if (!deflater.finished()) { // incompressible data, shouldn't happen with above buffer size
+                final byte[] tmp = new byte[2 * buffer.length];
+                System.arraycopy(buffer, 0, tmp, 0, headerLength + compressedLength);
+                buffer = tmp;
+            }
+        }
+        deflater.end();
+
+        final int blockSize = headerLength + compressedLength + FOOTER_LENGTH;
+        // header: gzip magic, deflate, flags, mtime=0, xfl=0, OS=unknown
+        buffer[0] = 31;
+        buffer[1] = (byte) 139;
+        buffer[2] = 8;
+        buffer[3] = (byte) (bgzf ? 4 : 0);
+        buffer[4] = buffer[5] = buffer[6] = buffer[7] = 0;
+        buffer[8] = 0;
+        buffer[9] = (byte) 255;
+        if (bgzf) { // XLEN=6, 'B','C', SLEN=2, BSIZE=blockSize-1
+            buffer[10] = 6;
+            buffer[11] = 0;
+            buffer[12] = 'B';
+            buffer[13] = 'C';
+            buffer[14] = 2;
+            buffer[15] = 0;
+            buffer[16] = (byte) ((blockSize - 1) & 0xff);
+            buffer[17] = (byte) (((blockSize - 1) >> 8) & 0xff);
+        }
+
+        // footer: CRC32 and uncompressed size
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        final long crc = crc32.getValue();
+        int pos = headerLength + compressedLength;
+        for (int i = 0; i < 4; i++)
+            buffer[pos++] = (byte) ((crc >> (8 * i)) & 0xff);
+        for (int i = 0; i < 4; i++)
+            buffer[pos++] = (byte) ((length >> (8 * i)) & 0xff);
+
+        final byte[] result = new byte[blockSize];
+        System.arraycopy(buffer, 0, result, 0, blockSize);
+        return result;
+    }
+}
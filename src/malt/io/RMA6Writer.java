@@ -168,6 +168,15 @@ public class RMA6Writer {
         rma6FileCreator.addQuery(queryText, queryTextLength, numberOfMatches, matchesText, matchesTextLength, match2classification2id, 0);
     }
 
+    /**
+     * close the RMA6 file without processing, used when alignment has failed and the file is incomplete
+     */
+    public void abort() throws IOException {
+        System.err.println("Aborting file: " + rma6File);
+        rma6FileCreator.endAddingQueries();
+        rma6FileCreator.close();
+    }
+
     private int parseIdInHeader(String key, String word) {
         int pos = word.indexOf(key);
         if (pos != -1) {
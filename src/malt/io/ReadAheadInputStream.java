@@ -0,0 +1,334 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.io;
+
+import jloda.util.Basic;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * input stream that decompresses on a separate thread and hands out large decoded blocks.
+ * BGZF files are decompressed in parallel, block by block, any other gzip or zip file is decompressed by the read-ahead thread
+ */
+public class ReadAheadInputStream extends InputStream {
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024; // size of decoded blocks handed out
+    private static final int MAX_PENDING_BYTES = 64 * 1024 * 1024; // bounds the decoded data held in pending blocks
+    private static final int BGZF_HEADER_LENGTH = 18;
+
+    private static final Future<byte[]> END_OF_INPUT = new FutureTask<>(new Callable<byte[]>() {
+        public byte[] call() {
+            return null;
+        }
+    });
+
+    private final InputStream ins;
+    private final ExecutorService executor;
+    private final ArrayBlockingQueue<Future<byte[]>> pendingBlocks;
+    private final Thread producer;
+    private volatile IOException producerException;
+    private volatile boolean closed = false;
+
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+    private boolean done = false;
+
+    /**
+     * opens an input stream for the named file. If the file ends on .gz or .zip, then decompression takes place in the background
+     * and, for BGZF files, in parallel. Otherwise, the stream is as provided by Basic.getInputStreamPossiblyZIPorGZIP
+     *
+     * @param fileName
+     * @param numberOfThreads number of threads used to decompress BGZF files
+     * @return input stream
+     */
+    public static InputStream getInputStreamPossiblyZIPorGZIP(String fileName, int numberOfThreads) throws IOException {
+        final String lowerCase = fileName.toLowerCase();
+        if (lowerCase.endsWith(".gz") || lowerCase.endsWith(".bgz")) {
+            final BufferedInputStream ins = new BufferedInputStream(new FileInputStream(fileName), 65536);
+            if (isBGZF(ins))
+                return new ReadAheadInputStream(ins, numberOfThreads, true);
+            ins.close();
+            return new ReadAheadInputStream(Basic.getInputStreamPossiblyZIPorGZIP(fileName), 0, false);
+        } else if (lowerCase.endsWith(".zip"))
+            return new ReadAheadInputStream(Basic.getInputStreamPossiblyZIPorGZIP(fileName), 0, false);
+        else
+            return Basic.getInputStreamPossiblyZIPorGZIP(fileName);
+    }
+
+    /**
+     * constructor
+     *
+     * @param ins             underlying stream, already decompressed unless isBGZF
+     * @param numberOfThreads number of threads used to decompress BGZF blocks
+     * @param isBGZF          is the underlying stream BGZF-compressed?
+     */
+    private ReadAheadInputStream(final InputStream ins, int numberOfThreads, final boolean isBGZF) {
+        this.ins = ins;
+        // each pending block holds at most BLOCK_SIZE bytes plus one BGZF block, so this bounds memory independently of the number of threads:
+        final int maxPendingBlocks = MAX_PENDING_BYTES / BLOCK_SIZE;
+        pendingBlocks = new ArrayBlockingQueue<>(maxPendingBlocks);
+        if (isBGZF) {
+            // more threads than pending blocks would be idle
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxPendingBlocks, numberOfThreads)), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "BGZF-inflate");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else
+            executor = null;
+
+        // this thread reads ahead and either decompresses or submits the decompression of blocks
+        producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!closed) {
+                        final Future<byte[]> block = (isBGZF ? submitNextBGZFBlocks() : readNextBlock());
+                        if (block == null)
+                            break;
+                        pendingBlocks.put(block);
+                    }
+                } catch (IOException ex) {
+                    producerException = ex;
+                } catch (InterruptedException | RejectedExecutionException ignored) { // stream was closed
+                } finally {
+                    if (closed)
+                        pendingBlocks.clear(); // nobody will read these, make sure there is space for end of input
+                    try {
+                        pendingBlocks.put(END_OF_INPUT);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        }, "ReadAhead");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * reads the next block of already-decompressed data
+     *
+     * @return completed block or null, if at end of input
+     */
+    private Future<byte[]> readNextBlock() throws IOException {
+        final byte[] block = new byte[BLOCK_SIZE];
+        int length = 0;
+        while (length < block.length) {
+            final int count = ins.read(block, length, block.length - length);
+            if (count <= 0)
+                break;
+            length += count;
+        }
+        if (length == 0)
+            return null;
+        if (length < block.length) {
+            final byte[] tmp = new byte[length];
+            System.arraycopy(block, 0, tmp, 0, length);
+            return CompletableFuture.completedFuture(tmp);
+        }
+        return CompletableFuture.completedFuture(block);
+    }
+
+    /**
+     * reads the next BGZF blocks, up to a total decompressed size of BLOCK_SIZE, and submits their decompression
+     *
+     * @return future decompressed data or null, if at end of input
+     */
+    private Future<byte[]> submitNextBGZFBlocks() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_SIZE / 2);
+        final byte[] header = new byte[BGZF_HEADER_LENGTH];
+        int uncompressedSize = 0;
+        while (uncompressedSize < BLOCK_SIZE) {
+            final int got = readFully(ins, header, 0, BGZF_HEADER_LENGTH);
+            if (got == 0)
+                break;
+            if (got < BGZF_HEADER_LENGTH || !isBGZFHeader(header))
+                throw new IOException("Invalid BGZF block header");
+            final int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+            final byte[] block = new byte[blockSize];
+            System.arraycopy(header, 0, block, 0, BGZF_HEADER_LENGTH);
+            if (readFully(ins, block, BGZF_HEADER_LENGTH, blockSize - BGZF_HEADER_LENGTH) < blockSize - BGZF_HEADER_LENGTH)
+                throw new IOException("Truncated BGZF block");
+            compressed.write(block, 0, blockSize);
+            uncompressedSize += getInt(block, blockSize - 4);
+        }
+        if (compressed.size() == 0)
+            return null;
+        final byte[] data = compressed.toByteArray();
+        final int size = uncompressedSize;
+        return executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return inflateBGZFBlocks(data, size);
+            }
+        });
+    }
+
+    /**
+     * decompress a sequence of complete BGZF blocks
+     *
+     * @param data
+     * @param uncompressedSize total size of decompressed data
+     * @return decompressed data
+     */
+    static byte[] inflateBGZFBlocks(byte[] data, int uncompressedSize) throws IOException {
+        final byte[] result = new byte[uncompressedSize];
+        final Inflater inflater = new Inflater(true);
+        final CRC32 crc32 = new CRC32();
+        try {
+            int offset = 0;
+            int resultLength = 0;
+            while (offset < data.length) {
+                final int blockSize = ((data[offset + 16] & 0xff) | ((data[offset + 17] & 0xff) << 8)) + 1;
+                final int blockLength = getInt(data, offset + blockSize - 4);
+                inflater.reset();
+                inflater.setInput(data, offset + BGZF_HEADER_LENGTH, blockSize - BGZF_HEADER_LENGTH - 8);
+                int length = 0;
+                while (length < blockLength && !inflater.finished()) {
+                    final int count = inflater.inflate(result, resultLength + length, blockLength - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Corrupt BGZF block");
+                    length += count;
+                }
+                crc32.reset();
+                crc32.update(result, resultLength, length);
+                if (length != blockLength || (int) crc32.getValue() != getInt(data, offset + blockSize - 8))
+                    throw new IOException("BGZF block failed CRC check");
+                resultLength += length;
+                offset += blockSize;
+            }
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (currentPos == current.length && !nextBlock())
+            return -1;
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (currentPos == current.length && !nextBlock())
+            return -1;
+        final int count = Math.min(length, current.length - currentPos);
+        System.arraycopy(current, currentPos, bytes, offset, count);
+        currentPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    /**
+     * get the next decompressed block
+     *
+     * @return true, if there is another block
+     */
+    private boolean nextBlock() throws IOException {
+        while (!done) {
+            try {
+                final Future<byte[]> future = pendingBlocks.take();
+                if (future == END_OF_INPUT) {
+                    done = true;
+                    if (producerException != null)
+                        throw producerException;
+                } else {
+                    current = future.get();
+                    currentPos = 0;
+                    if (current.length > 0)
+                        return true;
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause()));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            producer.interrupt();
+            if (executor != null)
+                executor.shutdownNow();
+            ins.close();
+        }
+    }
+
+    /**
+     * does the stream start with a BGZF block? Uses mark and reset
+     *
+     * @param ins
+     * @return true, if BGZF
+     */
+    private static boolean isBGZF(BufferedInputStream ins) throws IOException {
+        final byte[] header = new byte[BGZF_HEADER_LENGTH];
+        ins.mark(BGZF_HEADER_LENGTH);
+        final int got = readFully(ins, header, 0, BGZF_HEADER_LENGTH);
+        ins.reset();
+        return got == BGZF_HEADER_LENGTH && isBGZFHeader(header);
+    }
+
+    /**
+     * is this a gzip header that contains the BGZF extra field as its only extra subfield?
+     *
+     * @param header
+     * @return true, if BGZF block header
+     */
+    private static boolean isBGZFHeader(byte[] header) {
+        return header[0] == 31 && (header[1] & 0xff) == 139 && header[2] == 8 && (header[3] & 4) != 0
+                && header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    /**
+     * read up to the requested number of bytes
+     *
+     * @return number of bytes read, less than length only at end of input
+     */
+    private static int readFully(InputStream ins, byte[] bytes, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int count = ins.read(bytes, offset + total, length - total);
+            if (count <= 0)
+                break;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * get little-endian int
+     */
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+    }
+}
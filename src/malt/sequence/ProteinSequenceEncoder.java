@@ -22,8 +22,10 @@ package malt.sequence;
 import jloda.util.Basic;
 import jloda.util.ProgressPercentage;
 import malt.data.SeedShape;
+import malt.util.Utilities;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -157,4 +159,79 @@ public class ProteinSequenceEncoder {
         return a;
     }
 
+    /**
+     * parallel radix sort of list of longs, using entries with even index as keys and entries with odd indices as associated values.
+     * In each pass, each thread counts the digits of a contiguous chunk of the array and then scatters its chunk to the positions
+     * given by the prefix sums over all digits and all preceding chunks. Like radixSort2, this is stable
+     *
+     * @param array
+     * @param length
+     * @param w               number of bits to use (64 to sort full numbers)
+     * @param d               number of bits to consider at a time
+     * @param numberOfThreads
+     * @return sorted array
+     */
+    public static long[] radixSort2(long[] array, final int length, int w, final int d, int numberOfThreads, final ProgressPercentage progress) {
+        if (length % 2 != 0)
+            throw new RuntimeException("radixSort2(length=" + length + "): length must be even");
+
+        final int threads = Math.max(1, Math.min(numberOfThreads, length / 2));
+        final int steps = (w + d - 1) / d;
+        final int buckets = 1 << d;
+        final long digitMask = buckets - 1;
+        final int pairsPerChunk = (length / 2 + threads - 1) / threads;
+
+        final long[][] a = {array, new long[length]}; // source and target of current pass
+        final int[][] counts = new int[threads][buckets];
+
+        if (progress != null) {
+            progress.setMaximum(steps);
+            progress.setProgress(0);
+        }
+
+        for (int p = 0; p < steps; p++) {
+            final int shift = d * p;
+            // count digits per chunk:
+            Utilities.runInParallel(threads, new Utilities.IParallelTask() {
+                public void run(int t) {
+                    final long[] source = a[0];
+                    final int[] c = counts[t];
+                    Arrays.fill(c, 0);
+                    final int end = Math.min(length, 2 * (t + 1) * pairsPerChunk);
+                    for (int i = 2 * t * pairsPerChunk; i < end; i += 2)
+                        c[(int) ((source[i] >>> shift) & digitMask)]++;
+                }
+            });
+            // prefix sums, ordered by digit and then by chunk, so that each chunk gets its own range for each digit:
+            int total = 0;
+            for (int b = 0; b < buckets; b++) {
+                for (int t = 0; t < threads; t++) {
+                    final int count = counts[t][b];
+                    counts[t][b] = total;
+                    total += count;
+                }
+            }
+            // scatter:
+            Utilities.runInParallel(threads, new Utilities.IParallelTask() {
+                public void run(int t) {
+                    final long[] source = a[0];
+                    final long[] target = a[1];
+                    final int[] c = counts[t];
+                    final int end = Math.min(length, 2 * (t + 1) * pairsPerChunk);
+                    for (int i = 2 * t * pairsPerChunk; i < end; i += 2) {
+                        final int index = (c[(int) ((source[i] >>> shift) & digitMask)]++) << 1;
+                        target[index] = source[i];
+                        target[index + 1] = source[i + 1];
+                    }
+                }
+            });
+            // swap arrays
+            final long[] tmp = a[0];
+            a[0] = a[1];
+            a[1] = tmp;
+            if (progress != null)
+                progress.setProgress(p + 1);
+        }
+        return a[0];
+    }
 }
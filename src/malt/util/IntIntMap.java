@@ -0,0 +1,145 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package malt.util;
+
+import java.util.Arrays;
+
+/**
+ * a reusable map from non-negative int keys to int values, using open addressing and linear probing.
+ * Entries are marked with a generation stamp, so clear() is constant time and the map is allocation free once grown
+ */
+public class IntIntMap {
+    private int[] keys;
+    private int[] values;
+    private int[] stamps;
+    private int mask;
+    private int generation = 1;
+    private int size;
+
+    /**
+     * constructor
+     *
+     * @param initialCapacity expected number of entries
+     */
+    public IntIntMap(int initialCapacity) {
+        int capacity = 16;
+        while (capacity < 2 * initialCapacity)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * get the value for a key
+     *
+     * @param key
+     * @return value or -1, if key not present
+     */
+    public int get(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (stamps[i] != generation)
+                return -1;
+            if (keys[i] == key)
+                return values[i];
+        }
+    }
+
+    /**
+     * put a key and value
+     *
+     * @param key
+     * @param value
+     */
+    public void put(int key, int value) {
+        if (2 * (size + 1) > keys.length)
+            rehash(2 * keys.length);
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (stamps[i] != generation) {
+                stamps[i] = generation;
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    /**
+     * number of entries
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * erase all entries. Only touches the whole table when the generation counter wraps around
+     */
+    public void clear() {
+        size = 0;
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * allocate the arrays
+     *
+     * @param capacity must be a power of 2
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        stamps = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * rehash current entries into a larger table
+     *
+     * @param capacity
+     */
+    private void rehash(int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        final int[] oldStamps = stamps;
+        final int oldGeneration = generation;
+
+        allocate(capacity);
+        generation = 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStamps[i] == oldGeneration)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * spread the bits of the key
+     *
+     * @param key
+     * @return hash
+     */
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -33,6 +33,9 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * some utilities
@@ -423,4 +426,44 @@ public class Utilities {
         if (fileName.length() > 0)
             (new LoadMappingFileCommand()).apply("load mapFile='" + fileName + "' mapType=" + mapType.toString() + " cName=" + cName + ";");
     }
+
+    /**
+     * a task that is run by each of a number of threads
+     */
+    public interface IParallelTask {
+        void run(int threadNumber) throws Exception;
+    }
+
+    /**
+     * runs the given task in the given number of threads and waits for all to complete. Dies, if a task fails
+     *
+     * @param numberOfThreads
+     * @param task
+     */
+    public static void runInParallel(final int numberOfThreads, final IParallelTask task) {
+        final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        try {
+            for (int i = 0; i < numberOfThreads; i++) {
+                final int threadNumber = i;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run(threadNumber);
+                        } catch (Exception ex) {
+                            Basic.caught(ex);
+                            System.exit(1);  // just die...
+                        } finally {
+                            countDownLatch.countDown();
+                        }
+                    }
+                });
+            }
+            countDownLatch.await();
+        } catch (InterruptedException e) {
+            Basic.caught(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }